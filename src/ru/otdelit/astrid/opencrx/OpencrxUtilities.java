@@ -52,6 +52,18 @@ public class OpencrxUtilities extends SyncProviderUtilities {
 	public static final String PREF_SERVER_LAST_ACTIVITY = IDENTIFIER
 			+ "_last_activity"; //$NON-NLS-1$
 
+	/** max modifiedAt of activities read on last sync, millis */
+	public static final String PREF_SERVER_LAST_MODIFIED = IDENTIFIER
+			+ "_last_modified"; //$NON-NLS-1$
+
+	/** max modifiedAt of contacts read on last sync, millis */
+	public static final String PREF_SERVER_LAST_CONTACT_MODIFIED = IDENTIFIER
+			+ "_last_contact_modified"; //$NON-NLS-1$
+
+	/** time of last sync which read all open activities, millis */
+	public static final String PREF_SERVER_LAST_FULL_SYNC = IDENTIFIER
+			+ "_last_full_sync"; //$NON-NLS-1$
+
 	/** OpenCRX logged user's contact id */
 	private static final String PREF_USER_ID = IDENTIFIER + "_userid"; //$NON-NLS-1$
 
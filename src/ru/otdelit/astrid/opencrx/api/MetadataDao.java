@@ -6,10 +6,14 @@
 package ru.otdelit.astrid.opencrx.api;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.net.Uri;
 
 import com.todoroo.andlib.data.TodorooCursor;
 import com.todoroo.andlib.sql.Criterion;
@@ -88,4 +92,97 @@ public class MetadataDao extends MetadataApiDao {
 		}
 	}
 
+	/**
+	 * Reads metadata of given tasks with one query
+	 * 
+	 * @param taskIds
+	 *            ids of tasks, there should not be too many of them
+	 * @param metadataCriteria
+	 *            criteria to load metadata
+	 * @return metadata by task id, every task has list, possibly empty
+	 */
+	public HashMap<Long, ArrayList<Metadata>> readMetadata(
+			Collection<Long> taskIds, Criterion metadataCriteria) {
+		HashMap<Long, ArrayList<Metadata>> ret = new HashMap<Long, ArrayList<Metadata>>(
+				taskIds.size() * 2);
+		for (Long taskId : taskIds)
+			ret.put(taskId, new ArrayList<Metadata>());
+
+		if (taskIds.isEmpty())
+			return ret;
+
+		TodorooCursor<Metadata> cursor = query(Query
+				.select(Metadata.PROPERTIES).where(
+						Criterion.and(Metadata.TASK.in(taskIds
+								.toArray(new Long[taskIds.size()])),
+								metadataCriteria)));
+		try {
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				Metadata metadata = new Metadata(cursor);
+				ret.get(metadata.getValue(Metadata.TASK)).add(metadata);
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Adds operations synchronizing metadata of one task, see
+	 * {@link #synchronizeMetadata(long, ArrayList, Criterion)}, so they may be
+	 * applied in one batch with others.
+	 * 
+	 * @param operations
+	 *            operations to add to
+	 * @param taskId
+	 *            id of saved task
+	 * @param taskOperation
+	 *            index of operation inserting new task, if task is not saved
+	 *            yet, -1 otherwise
+	 * @param metadata
+	 *            list of new metadata items to save
+	 * @param existing
+	 *            metadata of task in database, see
+	 *            {@link #readMetadata(Collection, Criterion)}
+	 */
+	public static void addSynchronizeOperations(
+			ArrayList<ContentProviderOperation> operations, long taskId,
+			int taskOperation, ArrayList<Metadata> metadata,
+			ArrayList<Metadata> existing) {
+		HashSet<ContentValues> newMetadataValues = new HashSet<ContentValues>();
+		for (Metadata metadatum : metadata) {
+			if (taskOperation < 0)
+				metadatum.setValue(Metadata.TASK, taskId);
+			metadatum.clearValue(Metadata.ID);
+			newMetadataValues.add(metadatum.getMergedValues());
+		}
+
+		// try to find matches within our metadata list
+		for (Metadata item : existing) {
+			long id = item.getId();
+
+			// clear item id when matching with incoming values
+			item.clearValue(Metadata.ID);
+			if (newMetadataValues.remove(item.getMergedValues()))
+				continue;
+
+			// not matched. cut it
+			operations.add(ContentProviderOperation.newDelete(
+					Uri.withAppendedPath(Metadata.CONTENT_URI,
+							Long.toString(id))).build());
+		}
+
+		// everything that remains shall be written
+		for (ContentValues values : newMetadataValues) {
+			ContentProviderOperation.Builder insert = ContentProviderOperation
+					.newInsert(Metadata.CONTENT_URI).withValues(values);
+			if (taskOperation >= 0)
+				insert.withValueBackReference(Metadata.TASK.name,
+						taskOperation);
+			operations.add(insert.build());
+		}
+	}
+
 }
@@ -0,0 +1,157 @@
+package ru.otdelit.astrid.opencrx.api;
+
+import java.text.ParseException;
+
+/**
+ * Converts OpenCRX timestamps <code>yyyy-MM-dd'T'HH:mm:ss.SSS'Z'</code> (UTC)
+ * to epoch millis and back. Keeps no state, so it may be used by any number of
+ * threads at once.
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ */
+public final class OpencrxDateCodec {
+
+	/** length of formatted timestamp */
+	public static final int LENGTH = 24;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private OpencrxDateCodec() {
+	}
+
+	/**
+	 * Parses timestamp, fraction of second and trailing 'Z' may be omitted
+	 *
+	 * @return epoch millis
+	 */
+	public static long parse(CharSequence value) throws ParseException {
+		int len = value.length();
+
+		if (len < 19 || value.charAt(4) != '-' || value.charAt(7) != '-'
+				|| value.charAt(10) != 'T' || value.charAt(13) != ':'
+				|| value.charAt(16) != ':')
+			throw new ParseException("Unparseable date: " + value, 0); //$NON-NLS-1$
+
+		int year = digits(value, 0, 4);
+		int month = digits(value, 5, 2);
+		int day = digits(value, 8, 2);
+		int hour = digits(value, 11, 2);
+		int minute = digits(value, 14, 2);
+		int second = digits(value, 17, 2);
+
+		if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23
+				|| minute > 59 || second > 60)
+			throw new ParseException("Unparseable date: " + value, 0); //$NON-NLS-1$
+
+		int pos = 19;
+		int millis = 0;
+
+		if (pos < len && value.charAt(pos) == '.') {
+			pos++;
+			int scale = 100;
+			int start = pos;
+			for (; pos < len && isDigit(value.charAt(pos)); pos++) {
+				millis += (value.charAt(pos) - '0') * scale;
+				scale /= 10;
+			}
+			if (pos == start)
+				throw new ParseException("Unparseable date: " + value, pos); //$NON-NLS-1$
+		}
+
+		if (pos < len && value.charAt(pos) == 'Z')
+			pos++;
+
+		if (pos != len)
+			throw new ParseException("Unparseable date: " + value, pos); //$NON-NLS-1$
+
+		return daysFromEpoch(year, month, day) * MILLIS_PER_DAY + hour
+				* 3600000L + minute * 60000L + second * 1000L + millis;
+	}
+
+	/**
+	 * Appends formatted timestamp to destination
+	 */
+	public static void format(long millis, StringBuilder destination) {
+		long days = floorDiv(millis, MILLIS_PER_DAY);
+		int time = (int) (millis - days * MILLIS_PER_DAY);
+
+		// civil date from days since epoch, see daysFromEpoch
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+		append(destination, (int) year, 4);
+		destination.append('-');
+		append(destination, month, 2);
+		destination.append('-');
+		append(destination, day, 2);
+		destination.append('T');
+		append(destination, time / 3600000, 2);
+		destination.append(':');
+		append(destination, time / 60000 % 60, 2);
+		destination.append(':');
+		append(destination, time / 1000 % 60, 2);
+		destination.append('.');
+		append(destination, time % 1000, 3);
+		destination.append('Z');
+	}
+
+	public static String format(long millis) {
+		StringBuilder ret = new StringBuilder(LENGTH);
+		format(millis, ret);
+		return ret.toString();
+	}
+
+	/** days since 1970-01-01 of proleptic Gregorian date */
+	private static long daysFromEpoch(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = floorDiv(y, 400);
+		int yoe = (int) (y - era * 400);
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long ret = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0))
+			ret--;
+		return ret;
+	}
+
+	private static int digits(CharSequence value, int start, int count)
+			throws ParseException {
+		int ret = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = value.charAt(i);
+			if (!isDigit(c))
+				throw new ParseException("Unparseable date: " + value, i); //$NON-NLS-1$
+			ret = ret * 10 + (c - '0');
+		}
+		return ret;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static void append(StringBuilder destination, int value,
+			int width) {
+		for (int div = pow10(width - 1); div > 0; div /= 10)
+			destination.append((char) ('0' + value / div % 10));
+	}
+
+	private static int pow10(int exp) {
+		int ret = 1;
+		while (exp-- > 0)
+			ret *= 10;
+		return ret;
+	}
+
+}
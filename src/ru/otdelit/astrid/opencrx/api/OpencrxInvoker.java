@@ -5,10 +5,17 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.xpath.XPathExpressionException;
 
@@ -20,6 +27,7 @@ import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessGraph;
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessState;
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessTransition;
 import ru.otdelit.astrid.opencrx.sync.OpencrxContact;
+import ru.otdelit.astrid.opencrx.sync.OpencrxRemoteActivity;
 import ru.otdelit.astrid.opencrx.sync.OpencrxResourceAssignment;
 import android.text.TextUtils;
 import android.util.Log;
@@ -41,6 +49,7 @@ public class OpencrxInvoker {
 	private final static String XRI_ACCOUNT_PATTERN = "org.opencrx.kernel.account1/provider/%{provider}/segment/%{segment}/account";
 	private final static String XRI_RESOURCE_PATTERN = "org.opencrx.kernel.activity1/provider/%{provider}/segment/%{segment}/resource";
 	private final static String XRI_ACTIVITY_PROCESS_PATTERN = "org.opencrx.kernel.activity1/provider/%{provider}/segment/%{segment}/activityProcess";
+	private final static String XRI_ACTIVITY_EXTENT_PATTERN = "org.opencrx.kernel.activity1/provider/%{provider}/segment/%{segment}/extent";
 	private static final String XRI_USER_HOME_PATTERN = "org.opencrx.kernel.home1/provider/%{provider}/segment/%{segment}/userHome";
 
 	private final static String KEY_QUERY = "query";
@@ -50,6 +59,7 @@ public class OpencrxInvoker {
 
 	private final static String CLASS_CREATOR = "org:opencrx:kernel:activity1:ActivityCreator";
 	private final static String CLASS_ACTIVITY = "org:opencrx:kernel:activity1:Activity";
+	private final static String CLASS_CONTACT = "org:opencrx:kernel:account1:Contact";
 	private final static String CLASS_RESOURCE = "org:opencrx:kernel:activity1:Resource";
 	private final static String CLASS_ACTIVITY_PROCESS = "org:opencrx:kernel:activity1:ActivityProcess";
 	private final static String CLASS_ACTIVITY_PROCESS_TRANSITION = "org:opencrx:kernel:activity1:ActivityProcessTransition";
@@ -62,6 +72,7 @@ public class OpencrxInvoker {
 	private final static String QUERY_NAME = "name().equalTo(\"\")";
 	private final static String QUERY_ACTIVITY_STATE_NOT_CLOSED = "activityState().notEqualTo(:short:20)";
 	private final static String QUERY_CREATED_AFTER = "createdAt().greaterThan(:datetime:%s)";
+	private final static String QUERY_MODIFIED_AFTER = "modifiedAt().greaterThan(:datetime:%s)";
 
 	private final static String OPERATION_NEW_ACTIVITY = "newActivity";
 	private final static String OPERATION_REAPPLY_ACTIVITY_CREATOR = "reapplyActivityCreator";
@@ -86,15 +97,43 @@ public class OpencrxInvoker {
 
 	private final static int SIZE = 1000;
 
+	/** number of contacts requested at once */
+	private final static int CONTACT_BATCH_SIZE = 50;
+
 	private String XRI_ACTIVITY;
 	private String XRI_CREATOR;
 	private String XRI_ACCOUNT;
 	private String XRI_RESOURCE;
 	private String XRI_ACTIVITY_PROCESS;
 	private String XRI_USER_HOME;
+	private String XRI_ACTIVITY_EXTENT;
 
 	private String opencrxUrl;
 
+	public OpencrxInvoker() {
+		this(OpencrxRequestExecutor.DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param parallelism
+	 *            max number of requests executed concurrently
+	 */
+	public OpencrxInvoker(int parallelism) {
+		executor = new OpencrxRequestExecutor(parallelism);
+		resourceCache = new OpencrxResourceCache(
+				OpencrxResourceCache.DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Stops threads used for concurrent requests and forgets cached resources
+	 * and activity states.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		resourceCache.clear();
+		processStates.clear();
+	}
+
 	// --- authentication and time
 
 	public void authenticate(String login, String password) throws IOException {
@@ -121,59 +160,112 @@ public class OpencrxInvoker {
 	public JSONArray dashboardsShowListOpencrx() throws ApiServiceException,
 			IOException {
 
-		int position = 0;
-
 		JSONArray ret = new JSONArray();
 
-		for (;;) {
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_CREATOR).toString(),
-					KEY_QUERY_TYPE, CLASS_CREATOR, KEY_QUERY,
-					QUERY_NOT_DISABLED, KEY_POSITION, position, KEY_SIZE, SIZE);
-
-			boolean hasMore = utils.convertOpencrxCreatorsXmlToJson(ret, url);
-
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
+		new JsonPagedQuery(ret) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_CREATOR).toString(),
+						KEY_QUERY_TYPE, CLASS_CREATOR, KEY_QUERY,
+						QUERY_NOT_DISABLED, KEY_POSITION, position, KEY_SIZE,
+						size);
+			}
 
-		}
+			@Override
+			protected boolean readPage(JSONArray page, String url)
+					throws IOException {
+				return utils.convertOpencrxCreatorsXmlToJson(page, url);
+			}
+		}.execute(executor);
 
 		return ret;
 	}
 
 	// --- tasks
 
-	public JSONArray tasksShowListOpencrx(OpencrxActivityProcessGraph graph)
+	/**
+	 * Receives activities page by page, so they need not be kept in memory
+	 * all at once
+	 */
+	public interface ActivityPageHandler {
+		/**
+		 * Called in order of pages on thread which requested activities
+		 */
+		void handlePage(List<OpencrxRemoteActivity> activities)
+				throws IOException;
+	}
+
+	/**
+	 * Reads all open activities page by page
+	 */
+	public void tasksShowListOpencrx(OpencrxActivityProcessGraph graph,
+			ActivityPageHandler handler) throws IOException,
+			ApiServiceException {
+		tasksShowList(graph, TextUtils.concat(QUERY_NOT_DISABLED, ";",
+				QUERY_ACTIVITY_STATE_NOT_CLOSED).toString(), handler);
+	}
+
+	/**
+	 * Reads activities modified after given time page by page, closed ones
+	 * included
+	 * 
+	 * @param modifiedAfter
+	 *            millis
+	 */
+	public void tasksShowListOpencrx(OpencrxActivityProcessGraph graph,
+			long modifiedAfter, ActivityPageHandler handler)
 			throws IOException, ApiServiceException {
-		int position = 0;
+		tasksShowList(graph, createModifiedAfterQuery(modifiedAfter), handler);
+	}
 
-		JSONArray ret = new JSONArray();
+	private String createModifiedAfterQuery(long modifiedAfter) {
+		return TextUtils.concat(
+				QUERY_NOT_DISABLED,
+				";",
+				String.format(QUERY_MODIFIED_AFTER,
+						OpencrxUtils.formatAsOpencrx(modifiedAfter)))
+				.toString();
+	}
 
-		for (;;) {
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_ACTIVITY).toString(),
-					KEY_QUERY_TYPE,
-					CLASS_ACTIVITY,
-					KEY_QUERY,
-					TextUtils.concat(QUERY_NOT_DISABLED, ";",
-							QUERY_ACTIVITY_STATE_NOT_CLOSED).toString(),
-					KEY_POSITION, position, KEY_SIZE, SIZE);
+	private void tasksShowList(final OpencrxActivityProcessGraph graph,
+			final String query, final ActivityPageHandler handler)
+			throws IOException, ApiServiceException {
 
-			boolean hasMore = utils.getOpencrxActivities(ret, url, graph);
+		new OpencrxPagedQuery<List<OpencrxRemoteActivity>>(SIZE) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_ACTIVITY).toString(),
+						KEY_QUERY_TYPE, CLASS_ACTIVITY, KEY_QUERY, query,
+						KEY_POSITION, position, KEY_SIZE, size);
+			}
 
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
+			@Override
+			protected List<OpencrxRemoteActivity> createPage() {
+				return new ArrayList<OpencrxRemoteActivity>(SIZE);
+			}
 
-		}
+			@Override
+			protected boolean readPage(List<OpencrxRemoteActivity> page,
+					String url) throws IOException {
+				return utils.getOpencrxActivities(page, url, graph);
+			}
 
-		return ret;
+			@Override
+			protected void mergePage(List<OpencrxRemoteActivity> page)
+					throws IOException {
+				for (OpencrxRemoteActivity activity : page)
+					rememberProcessState(activity);
+
+				handler.handlePage(page);
+			}
+		}.execute(executor);
 	}
 
-	public JSONObject tasksCreateOpencrx(String title, String idCreator,
+	public OpencrxRemoteActivity tasksCreateOpencrx(String title, String idCreator,
 			String idContact, String dueBy, int priority,
 			OpencrxActivityProcessGraph graph) throws IOException {
 
@@ -199,7 +291,8 @@ public class OpencrxInvoker {
 		url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/",
 				newActivityId).toString());
 		// put modification params, as a result retrieve activity
-		return utils.modifyActivity(url, modifyData, graph);
+		return rememberProcessState(utils.modifyActivity(url, modifyData,
+				graph));
 	}
 
 	private String getPropertySetAddressFromObjects(List<String> xris)
@@ -291,13 +384,52 @@ public class OpencrxInvoker {
 		}
 	}
 
-	public JSONObject tasksViewOpencrx(String idActivity,
+	public OpencrxRemoteActivity tasksViewOpencrx(String idActivity,
 			OpencrxActivityProcessGraph graph) throws ApiServiceException,
 			IOException {
 
-		return utils.getOpencrxActivity(
+		return rememberProcessState(utils.getOpencrxActivity(
 				createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/",
-						idActivity).toString()), graph);
+						idActivity).toString()), graph));
+	}
+
+	/**
+	 * Reads given activities concurrently, one request each
+	 * 
+	 * @return map of activity id to activity, activities not found on server
+	 *         are missing
+	 */
+	public HashMap<String, OpencrxRemoteActivity> tasksViewOpencrx(
+			List<String> activityIds, final OpencrxActivityProcessGraph graph)
+			throws IOException {
+
+		List<Callable<OpencrxRemoteActivity>> requests = new ArrayList<Callable<OpencrxRemoteActivity>>();
+
+		for (final String activityId : activityIds) {
+			requests.add(new Callable<OpencrxRemoteActivity>() {
+				public OpencrxRemoteActivity call() throws Exception {
+					try {
+						return tasksViewOpencrx(activityId, graph);
+					} catch (ApiServiceException ex) {
+						// no such activity
+						return null;
+					}
+				}
+			});
+		}
+
+		List<OpencrxRemoteActivity> activities = executor.invokeAll(requests);
+
+		HashMap<String, OpencrxRemoteActivity> ret = new HashMap<String, OpencrxRemoteActivity>();
+
+		int i = 0;
+		for (String activityId : activityIds) {
+			OpencrxRemoteActivity activity = activities.get(i++);
+			if (activity != null)
+				ret.put(activityId, activity);
+		}
+
+		return ret;
 	}
 
 	public void taskSetCreator(String idActivity, String idCreator)
@@ -308,6 +440,9 @@ public class OpencrxInvoker {
 		String applyCreatorData = OpencrxUtils
 				.createReappplyActivityCreatorParams(TextUtils.concat(
 						XRI_PREFIX, XRI_CREATOR, "/", idCreator).toString());
+		// creator may move activity to other process
+		processStates.remove(idActivity);
+
 		utils.executePost(url, applyCreatorData);
 
 		renewActivityWithTrackerProperties(idActivity, idCreator);
@@ -356,91 +491,71 @@ public class OpencrxInvoker {
 				crxId).toString());
 	}
 
-	public void taskSetAssignedTo(String idActivity, String idContact)
-			throws IOException, ApiServiceException {
-		String url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY,
-				"/", idActivity).toString());
-
-		String modifyData = OpencrxUtils.createActiviftyModificationParams(
-				ACTIVITY_PROPERTY_ASSIGNED_TO,
-				TextUtils.concat(XRI_PREFIX, XRI_ACCOUNT, "/", idContact)
-						.toString());
-
-		// put modification params, as a result retrieve activity xml
-		utils.executePut(url, modifyData);
-
-	}
-
-	public void taskSetName(String idActivity, String name) throws IOException,
+	/**
+	 * Modifies properties of activity with one request. Properties passed as
+	 * null are not changed.
+	 * 
+	 * @return true if request was sent
+	 */
+	public boolean taskModify(String idActivity, String name,
+			Integer priority, String dueBy, Long scheduledStartUnix,
+			String description, String idContact) throws IOException,
 			ApiServiceException {
-		String url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY,
-				"/", idActivity).toString());
 
-		String modifyData = OpencrxUtils.createActiviftyModificationParams(
-				ACTIVITY_PROPERTY_NAME, name);
-
-		// put modification params, as a result retrieve activity xml
-		utils.executePut(url, modifyData);
+		List<String> params = new ArrayList<String>();
 
-	}
-
-	public void taskSetDetailedDescription(String idActivity, String description)
-			throws IOException, ApiServiceException {
-		String url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY,
-				"/", idActivity).toString());
+		if (name != null) {
+			params.add(ACTIVITY_PROPERTY_NAME);
+			params.add(name);
+		}
 
-		String modifyData = OpencrxUtils.createActiviftyModificationParams(
-				ACTIVITY_PROPERTY_DETAILED_DESCRIPTION, description);
+		if (priority != null) {
+			params.add(ACTIVITY_PROPERTY_PRIORITY);
+			params.add(priority.toString());
+		}
 
-		// put modification params, as a result retrieve activity xml
-		utils.executePut(url, modifyData);
+		if (dueBy != null) {
+			params.add(ACTIVITY_PROPERTY_DUE_BY);
+			params.add(dueBy);
+		}
 
-	}
+		if (scheduledStartUnix != null) {
+			params.add(ACTIVITY_PROPERTY_SCHEDULED_START);
+			params.add(OpencrxUtils.formatAsOpencrx(scheduledStartUnix));
+		}
 
-	public void taskSetPriority(String idActivity, Integer priority)
-			throws IOException, ApiServiceException {
-		String url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY,
-				"/", idActivity).toString());
+		if (description != null) {
+			params.add(ACTIVITY_PROPERTY_DETAILED_DESCRIPTION);
+			params.add(description);
+		}
 
-		String modifyData = OpencrxUtils.createActiviftyModificationParams(
-				ACTIVITY_PROPERTY_PRIORITY, priority.toString());
+		if (idContact != null) {
+			params.add(ACTIVITY_PROPERTY_ASSIGNED_TO);
+			params.add(TextUtils.concat(XRI_PREFIX, XRI_ACCOUNT, "/",
+					idContact).toString());
+		}
 
-		// put modification params, as a result retrieve activity xml
-		utils.executePut(url, modifyData);
-	}
+		if (params.isEmpty())
+			return false;
 
-	public void tasksSetDueBy(String idActivity, String dueBy)
-			throws IOException, ApiServiceException {
 		String url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY,
 				"/", idActivity).toString());
 
-		String modifyData = OpencrxUtils.createActiviftyModificationParams(
-				ACTIVITY_PROPERTY_DUE_BY, dueBy);
+		String modifyData = OpencrxUtils
+				.createActiviftyModificationParams(params
+						.toArray(new String[params.size()]));
 
 		// put modification params, as a result retrieve activity xml
 		utils.executePut(url, modifyData);
 
-	}
-
-	public void taskSetScheduledStart(String idActivity, long scheduledStartUnix)
-			throws IOException, ApiServiceException {
-		String scheduledStart = OpencrxUtils
-				.formatAsOpencrx(scheduledStartUnix);
-
-		String url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY,
-				"/", idActivity).toString());
-
-		String modifyData = OpencrxUtils.createActiviftyModificationParams(
-				ACTIVITY_PROPERTY_SCHEDULED_START, scheduledStart);
-
-		// put modification params, as a result retrieve activity xml
-		utils.executePut(url, modifyData);
+		return true;
 	}
 
 	public void taskAddNote(String idActivity, String note,
 			OpencrxActivityProcessGraph graph) throws IOException {
 
-		// first: we get info about ActivityProcess and current ProcessState
+		// first: we get info about ActivityProcess and current ProcessState,
+		// usually known from activity read during sync
 		Pair<String, String> processAndState = getActivityProcessAndState(idActivity);
 
 		String processId = processAndState.getLeft();
@@ -465,41 +580,69 @@ public class OpencrxInvoker {
 			if (transAssign == null)
 				return;
 
-			executeFollowUp(idActivity, processId, transAssign.getId(),
-					"Assign", "");
+			executeFollowUp(idActivity, processId, transAssign, "Assign", "");
 
 		}
 
 		// fourth: at last we execute AddNote follow-up
-		executeFollowUp(idActivity, processId, transAddNote.getId(),
-				"Astrid Note", note);
+		executeFollowUp(idActivity, processId, transAddNote, "Astrid Note",
+				note);
 	}
 
-	public List<String> getAddNotes(String idActivity,
-			OpencrxActivityProcessGraph graph, String lastSync)
-			throws ApiServiceException {
-		List<String> ret = new LinkedList<String>();
+	/**
+	 * Reads notes added to activities after last sync with one paged query
+	 * over follow-ups of the whole segment
+	 * 
+	 * @return map of activity id to its notes
+	 */
+	public HashMap<String, List<String>> getAddNotes(List<String> activityIds,
+			OpencrxActivityProcessGraph graph, final String lastSync)
+			throws IOException {
 
-		OpencrxActivityProcessTransition transAddNote = graph
+		final HashMap<String, List<String>> ret = new HashMap<String, List<String>>();
+		for (String activityId : activityIds)
+			ret.put(activityId, new ArrayList<String>());
+
+		final OpencrxActivityProcessTransition transAddNote = graph
 				.getTransitionByName("Add Note");
-		int position = 0;
 
-		for (;;) {
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/", idActivity,
-							"/", ACTIVITY_PROPERTY_FOLLOW_UP).toString(),
-					KEY_POSITION, position, KEY_SIZE, SIZE, KEY_QUERY_TYPE,
-					CLASS_ACTIVITY_FOLLOW_UP, KEY_QUERY,
-					String.format(QUERY_CREATED_AFTER, lastSync));
+		if (activityIds.isEmpty() || transAddNote == null)
+			return ret;
+
+		// graph knows no process of transition, so follow-ups are filtered
+		// by transition while parsing
+		new OpencrxPagedQuery<HashMap<String, List<String>>>(SIZE) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_ACTIVITY_EXTENT)
+								.toString(), KEY_POSITION, position, KEY_SIZE,
+						size, KEY_QUERY_TYPE, CLASS_ACTIVITY_FOLLOW_UP,
+						KEY_QUERY, String.format(QUERY_CREATED_AFTER, lastSync));
+			}
 
-			boolean hasMore = utils.getFollowUpsAddNote(ret, url,
-					transAddNote.getId());
+			@Override
+			protected HashMap<String, List<String>> createPage() {
+				return new HashMap<String, List<String>>();
+			}
 
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
-		}
+			@Override
+			protected boolean readPage(HashMap<String, List<String>> page,
+					String url) throws IOException {
+				return utils.getFollowUpsAddNote(page, url,
+						transAddNote.getId());
+			}
+
+			@Override
+			protected void mergePage(HashMap<String, List<String>> page) {
+				for (Map.Entry<String, List<String>> entry : page.entrySet()) {
+					List<String> notes = ret.get(entry.getKey());
+					if (notes != null)
+						notes.addAll(entry.getValue());
+				}
+			}
+		}.execute(executor);
 
 		return ret;
 	}
@@ -526,7 +669,7 @@ public class OpencrxInvoker {
 		if (transAssign == null)
 			return;
 
-		executeFollowUp(idActivity, processId, transAssign.getId(),
+		executeFollowUp(idActivity, processId, transAssign,
 				"Assign Resource", "");
 	}
 
@@ -547,63 +690,106 @@ public class OpencrxInvoker {
 
 	public OpencrxActivityProcessGraph getActivityProcessGraph()
 			throws IOException {
+		return getActivityProcessGraph(null);
+	}
+
+	/**
+	 * Reads activity process graph. Process is requested first, its states
+	 * and transitions are read only if it was modified after known graph.
+	 * 
+	 * @param known
+	 *            graph read before, may be null
+	 * @return known graph if it is up to date, otherwise new one
+	 */
+	public OpencrxActivityProcessGraph getActivityProcessGraph(
+			OpencrxActivityProcessGraph known) throws IOException {
 		String url = createFetchUrl(
 				TextUtils.concat(opencrxUrl, XRI_ACTIVITY_PROCESS).toString(),
 				KEY_QUERY_TYPE, CLASS_ACTIVITY_PROCESS, KEY_QUERY,
 				QUERY_NAME
 						.replace("\"\"", "\"Bug + feature tracking process\""));
 
-		String processId = utils.getActivityProcessId(url);
+		Pair<String, Long> process = utils.getActivityProcessIdAndVersion(url);
 
-		int position = 0;
-		List<OpencrxActivityProcessTransition> transitions = new LinkedList<OpencrxActivityProcessTransition>();
-
-		for (;;) {
-			url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_ACTIVITY_PROCESS, "/",
-							processId, "/",
-							ACTIVITY_PROCESS_PROPERTY_TRANSITIONS).toString(),
-					KEY_POSITION, position, KEY_SIZE, SIZE, KEY_QUERY_TYPE,
-					CLASS_ACTIVITY_PROCESS_TRANSITION, KEY_QUERY,
-					QUERY_NOT_DISABLED);
+		final String processId = process.getLeft();
+		long version = process.getRight();
 
-			boolean hasMore = utils.getActivityProcessTransitions(transitions,
-					url);
+		if (known != null && version != 0 && version == known.getVersion()
+				&& processId != null
+				&& processId.equals(known.getProcessId()))
+			return known;
 
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
-		}
+		List<OpencrxActivityProcessTransition> transitions = new LinkedList<OpencrxActivityProcessTransition>();
 
-		position = 0;
-		List<OpencrxActivityProcessState> states = new LinkedList<OpencrxActivityProcessState>();
+		new ListPagedQuery<OpencrxActivityProcessTransition>(transitions) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_ACTIVITY_PROCESS, "/",
+								processId, "/",
+								ACTIVITY_PROCESS_PROPERTY_TRANSITIONS)
+								.toString(), KEY_POSITION, position, KEY_SIZE,
+						size, KEY_QUERY_TYPE,
+						CLASS_ACTIVITY_PROCESS_TRANSITION, KEY_QUERY,
+						QUERY_NOT_DISABLED);
+			}
 
-		for (;;) {
+			@Override
+			protected boolean readPage(
+					List<OpencrxActivityProcessTransition> page, String url)
+					throws IOException {
+				return utils.getActivityProcessTransitions(page, url);
+			}
+		}.execute(executor);
 
-			url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_ACTIVITY_PROCESS, "/",
-							processId, "/", ACTIVITY_PROCESS_PROPERTY_STATES)
-							.toString(), KEY_POSITION, position, KEY_SIZE,
-					SIZE, KEY_QUERY_TYPE, CLASS_ACTIVITY_PROCESS_STATE,
-					KEY_QUERY, QUERY_NOT_DISABLED);
+		List<OpencrxActivityProcessState> states = new LinkedList<OpencrxActivityProcessState>();
 
-			System.out.println(url);
+		new ListPagedQuery<OpencrxActivityProcessState>(states) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_ACTIVITY_PROCESS, "/",
+								processId, "/",
+								ACTIVITY_PROCESS_PROPERTY_STATES).toString(),
+						KEY_POSITION, position, KEY_SIZE, size,
+						KEY_QUERY_TYPE, CLASS_ACTIVITY_PROCESS_STATE,
+						KEY_QUERY, QUERY_NOT_DISABLED);
+			}
 
-			boolean hasMore = utils.getActivityProcessStates(states, url);
+			@Override
+			protected boolean readPage(List<OpencrxActivityProcessState> page,
+					String url) throws IOException {
+				return utils.getActivityProcessStates(page, url);
+			}
+		}.execute(executor);
 
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
-		}
+		return new OpencrxActivityProcessGraph(transitions, states, processId,
+				version);
+	}
 
-		return new OpencrxActivityProcessGraph(transitions, states);
+	/**
+	 * Executes follow-up and remembers state of activity after it
+	 */
+	private void executeFollowUp(String idActivity, String idProcess,
+			OpencrxActivityProcessTransition transition, String name,
+			String description) throws ApiServiceException, IOException {
+		executeFollowUp(idActivity, idProcess, transition.getId(), name,
+				description);
+
+		if (transition.getNextState() != null
+				&& transition.getNextState().getId() != null)
+			processStates.put(idActivity, new Pair<String, String>(idProcess,
+					transition.getNextState().getId()));
 	}
 
 	public void executeFollowUp(String idActivity, String idProcess,
 			String idTransition, String name, String description)
 			throws ApiServiceException, IOException {
+		// state is unknown until follow-up succeeds
+		processStates.remove(idActivity);
+
 		String url;
 		url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/",
 				idActivity, "/", OPERATION_FOLLOW_UP).toString());
@@ -626,8 +812,7 @@ public class OpencrxInvoker {
 
 		while (!path.isEmpty()) {
 			OpencrxActivityProcessTransition t = path.pop();
-			this.executeFollowUp(idActivity, idProcess, t.getId(), t.getName(),
-					"");
+			this.executeFollowUp(idActivity, idProcess, t, t.getName(), "");
 		}
 
 		return true;
@@ -650,16 +835,48 @@ public class OpencrxInvoker {
 
 	}
 
+	/**
+	 * @return process and state of activity. Activity is read only if its
+	 *         state is not known from activities read before
+	 */
 	public Pair<String, String> getActivityProcessAndState(String idActivity)
 			throws ApiServiceException, IOException {
+		Pair<String, String> processAndState = processStates.get(idActivity);
+		if (processAndState != null)
+			return processAndState;
+
 		String url = createFetchUrl(TextUtils.concat(opencrxUrl, XRI_ACTIVITY,
 				"/", idActivity).toString());
 
-		Pair<String, String> processAndState = utils
-				.getProcessIdAndStateId(url);
+		processAndState = utils.getProcessIdAndStateId(url);
+
+		if (processAndState.getLeft() != null
+				&& processAndState.getRight() != null)
+			processStates.put(idActivity, processAndState);
+
 		return processAndState;
 	}
 
+	/**
+	 * Remembers process state of activity read from server
+	 */
+	private OpencrxRemoteActivity rememberProcessState(
+			OpencrxRemoteActivity activity) {
+		if (activity == null)
+			return null;
+
+		String idActivity = activity.getCrxId();
+		String processId = activity.getProcessId();
+		String stateId = activity.getProcessStateId();
+
+		if (!TextUtils.isEmpty(idActivity) && !TextUtils.isEmpty(processId)
+				&& !TextUtils.isEmpty(stateId))
+			processStates.put(idActivity, new Pair<String, String>(processId,
+					stateId));
+
+		return activity;
+	}
+
 	// --- labels
 
 	// --- contacts
@@ -671,140 +888,298 @@ public class OpencrxInvoker {
 
 	public OpencrxContact[] usersShowListOpencrx() throws ApiServiceException,
 			IOException {
-		int position = 0;
+		return usersShowListOpencrx(new HashMap<String, OpencrxContact>(), 0);
+	}
+
+	/**
+	 * Reads contacts of resources. Every contact is read once; contacts read
+	 * on previous sync and not modified since then are taken from
+	 * <code>known</code>. Other contacts are read concurrently in batches.
+	 * 
+	 * @param known
+	 *            contacts read before, keyed by crx id
+	 * @param modifiedAfter
+	 *            max modifiedAt of contacts read before, 0 to read all
+	 *            contacts again
+	 */
+	public OpencrxContact[] usersShowListOpencrx(
+			Map<String, OpencrxContact> known, long modifiedAfter)
+			throws ApiServiceException, IOException {
 
-		List<OpencrxContact> ret = new LinkedList<OpencrxContact>();
+		List<OpencrxContact> ret = new ArrayList<OpencrxContact>();
 		List<String> ids = new LinkedList<String>();
 
-		for (;;) {
+		new ListPagedQuery<String>(ids) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_RESOURCE).toString(),
+						KEY_QUERY_TYPE, CLASS_RESOURCE, KEY_QUERY,
+						QUERY_NOT_DISABLED, KEY_POSITION, position, KEY_SIZE,
+						size);
+			}
+
+			@Override
+			protected boolean readPage(List<String> page, String url)
+					throws IOException {
+				return utils.getContactIdsFromResources(page, url);
+			}
+		}.execute(executor);
 
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_RESOURCE).toString(),
-					KEY_QUERY_TYPE, CLASS_RESOURCE, KEY_QUERY,
-					QUERY_NOT_DISABLED, KEY_POSITION, position, KEY_SIZE, SIZE);
+		LinkedHashSet<String> distinctIds = new LinkedHashSet<String>();
+		for (String id : ids)
+			if (!TextUtils.isEmpty(id))
+				distinctIds.add(id);
 
-			boolean hasMore = utils.getContactIdsFromResources(ids, url);
+		HashMap<String, OpencrxContact> modified = contactsShowModified(
+				known.isEmpty() ? 0 : modifiedAfter);
 
-			if (hasMore)
-				position += SIZE;
+		List<String> missed = new ArrayList<String>();
+		for (String id : distinctIds) {
+			OpencrxContact contact = modified != null ? modified.get(id) : null;
+			if (contact == null && modified != null)
+				contact = known.get(id);
+
+			if (contact != null)
+				ret.add(contact);
 			else
-				break;
+				missed.add(id);
+		}
+
+		for (int from = 0; from < missed.size(); from += CONTACT_BATCH_SIZE) {
+			List<Callable<List<OpencrxContact>>> requests = new ArrayList<Callable<List<OpencrxContact>>>();
+
+			for (String id : missed.subList(from,
+					Math.min(from + CONTACT_BATCH_SIZE, missed.size()))) {
+				final String url = createFetchUrl(TextUtils.concat(opencrxUrl,
+						XRI_ACCOUNT, "/", id).toString());
+
+				requests.add(new Callable<List<OpencrxContact>>() {
+					public List<OpencrxContact> call() throws Exception {
+						List<OpencrxContact> contact = new ArrayList<OpencrxContact>(
+								1);
+						try {
+							utils.getOpencrxContacts(contact, url);
+						} catch (ApiServiceException ex) {
+							// we may not have rights to retrieve this contact
+							Log.w(OpencrxUtils.TAG, "Contact was not read: "
+									+ url);
+						}
+						return contact;
+					}
+				});
+			}
 
+			for (List<OpencrxContact> contact : executor.invokeAll(requests))
+				ret.addAll(contact);
 		}
 
-		for (String id : ids) {
+		return ret.toArray(new OpencrxContact[0]);
+	}
 
-			if (TextUtils.isEmpty(id))
-				continue;
+	/**
+	 * Reads contacts of segment modified after given time.
+	 * 
+	 * @return map of crx id to contact, null if all contacts should be read
+	 */
+	private HashMap<String, OpencrxContact> contactsShowModified(
+			long modifiedAfter) throws IOException {
 
-			String url = createFetchUrl(TextUtils.concat(opencrxUrl,
-					XRI_ACCOUNT, "/", id).toString());
+		if (modifiedAfter <= 0)
+			return null;
 
-			try {
-				utils.getOpencrxContacts(ret, url);
-			} catch (ApiServiceException ex) {
-				// catch it here if we don't have rights to retrieve this
-				// contact
-			}
+		final String query = String.format(QUERY_MODIFIED_AFTER,
+				OpencrxUtils.formatAsOpencrx(modifiedAfter));
 
+		List<OpencrxContact> contacts = new LinkedList<OpencrxContact>();
+
+		try {
+			new ListPagedQuery<OpencrxContact>(contacts) {
+				@Override
+				protected String createPageUrl(int position, int size)
+						throws ApiServiceException {
+					return createFetchUrl(
+							TextUtils.concat(opencrxUrl, XRI_ACCOUNT)
+									.toString(), KEY_QUERY_TYPE,
+							CLASS_CONTACT, KEY_QUERY, query, KEY_POSITION,
+							position, KEY_SIZE, size);
+				}
+
+				@Override
+				protected boolean readPage(List<OpencrxContact> page,
+						String url) throws IOException {
+					return utils.getOpencrxContacts(page, url);
+				}
+			}.execute(executor);
+		} catch (ApiServiceException ex) {
+			// segment query may be forbidden, then contacts are read one by
+			// one
+			Log.w(OpencrxUtils.TAG, "Modified contacts were not read", ex);
+			return null;
 		}
 
-		return ret.toArray(new OpencrxContact[0]);
+		HashMap<String, OpencrxContact> ret = new HashMap<String, OpencrxContact>();
+		for (OpencrxContact contact : contacts)
+			ret.put(contact.getCrxId(), contact);
+
+		return ret;
 	}
 
 	// resources
 
 	public JSONArray resourcesShowList() throws ApiServiceException,
 			IOException {
-		int position = 0;
 
 		JSONArray ret = new JSONArray();
 
-		for (;;) {
-
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_RESOURCE).toString(),
-					KEY_QUERY_TYPE, CLASS_RESOURCE, KEY_QUERY,
-					QUERY_NOT_DISABLED, KEY_POSITION, position, KEY_SIZE, SIZE);
-
-			boolean hasMore = utils.convertOpencrxResourcesToJson(ret, url);
+		new JsonPagedQuery(ret) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_RESOURCE).toString(),
+						KEY_QUERY_TYPE, CLASS_RESOURCE, KEY_QUERY,
+						QUERY_NOT_DISABLED, KEY_POSITION, position, KEY_SIZE,
+						size);
+			}
 
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
+			@Override
+			protected boolean readPage(JSONArray page, String url)
+					throws IOException {
+				return utils.convertOpencrxResourcesToJson(page, url);
+			}
+		}.execute(executor);
 
-		}
+		resourceCache.putAll(ret);
 
 		return ret;
 	}
 
 	public JSONArray resourcesShowForTask(String activityId)
 			throws ApiServiceException, IOException {
+		return resourcesShowForTasks(Collections.singletonList(activityId))
+				.get(activityId);
+	}
 
-		int position = 0;
-
-		JSONArray arr = new JSONArray();
-
-		for (;;) {
-
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/", activityId,
-							"/", ACTIVITY_PROPERTY_ASSIGNED_RESOURCE)
-							.toString(), KEY_POSITION, position, KEY_SIZE, SIZE);
+	/**
+	 * Reads resources assigned to activities. Assignments of activities are
+	 * read concurrently, every assigned resource is read once.
+	 * 
+	 * @return map of activity id to array of its resources
+	 */
+	public HashMap<String, JSONArray> resourcesShowForTasks(
+			List<String> activityIds) throws IOException {
+
+		List<Callable<List<OpencrxResourceAssignment>>> requests = new ArrayList<Callable<List<OpencrxResourceAssignment>>>();
+
+		for (final String activityId : activityIds) {
+			requests.add(new Callable<List<OpencrxResourceAssignment>>() {
+				public List<OpencrxResourceAssignment> call() throws Exception {
+					return resourceAssignmentsShowForTask(activityId);
+				}
+			});
+		}
 
-			List<OpencrxResourceAssignment> assignments = new LinkedList<OpencrxResourceAssignment>();
+		List<List<OpencrxResourceAssignment>> assignments = executor
+				.invokeAll(requests);
 
-			boolean hasMore = utils.getResourceAssignments(assignments, url);
+		LinkedHashSet<String> resourceIds = new LinkedHashSet<String>();
+		for (List<OpencrxResourceAssignment> list : assignments)
+			for (OpencrxResourceAssignment assignment : list)
+				if (!TextUtils.isEmpty(assignment.getResourceId()))
+					resourceIds.add(assignment.getResourceId());
 
-			for (OpencrxResourceAssignment assignment : assignments) {
+		HashMap<String, JSONObject> resources = resourcesShow(resourceIds);
 
-				if (TextUtils.isEmpty(assignment.getResourceId()))
-					continue;
+		HashMap<String, JSONArray> ret = new HashMap<String, JSONArray>();
 
-				url = createFetchUrl(
-						TextUtils.concat(opencrxUrl, XRI_RESOURCE, "/",
-								assignment.getResourceId()).toString(),
-						KEY_POSITION, position, KEY_SIZE, SIZE);
+		int i = 0;
+		for (String activityId : activityIds) {
+			JSONArray arr = new JSONArray();
 
-				JSONObject resource = utils.convertResourceToJson(url);
+			for (OpencrxResourceAssignment assignment : assignments.get(i++)) {
+				JSONObject resource = resources.get(assignment.getResourceId());
 				if (resource != null)
 					arr.put(resource);
 			}
 
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
-
+			ret.put(activityId, arr);
 		}
 
-		return arr;
+		return ret;
 	}
 
-	public List<OpencrxResourceAssignment> resourceAssignmentsShowForTask(
-			String activityId) throws IOException {
+	/**
+	 * Reads resources concurrently. Only resources missing in cache are
+	 * requested from server.
+	 * 
+	 * @return map of resource id to resource
+	 */
+	private HashMap<String, JSONObject> resourcesShow(
+			Collection<String> resourceIds) throws IOException {
 
-		int position = 0;
+		HashMap<String, JSONObject> ret = new HashMap<String, JSONObject>();
 
-		List<OpencrxResourceAssignment> assignments = new LinkedList<OpencrxResourceAssignment>();
+		List<String> missed = new ArrayList<String>();
+		List<Callable<JSONObject>> requests = new ArrayList<Callable<JSONObject>>();
+
+		for (String resourceId : resourceIds) {
+			if (resourceCache.contains(resourceId)) {
+				JSONObject resource = resourceCache.get(resourceId);
+				if (resource != null)
+					ret.put(resourceId, resource);
+				continue;
+			}
 
-		for (;;) {
+			missed.add(resourceId);
 
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/", activityId,
-							"/", ACTIVITY_PROPERTY_ASSIGNED_RESOURCE)
-							.toString(), KEY_POSITION, position, KEY_SIZE, SIZE);
+			final String url = createFetchUrl(TextUtils.concat(opencrxUrl,
+					XRI_RESOURCE, "/", resourceId).toString());
 
-			boolean hasMore = utils.getResourceAssignments(assignments, url);
+			requests.add(new Callable<JSONObject>() {
+				public JSONObject call() throws Exception {
+					return utils.convertResourceToJson(url);
+				}
+			});
+		}
 
-			if (hasMore)
-				position += SIZE;
-			else
-				break;
+		List<JSONObject> resources = executor.invokeAll(requests);
 
+		int i = 0;
+		for (String resourceId : missed) {
+			JSONObject resource = resources.get(i++);
+			resourceCache.put(resourceId, resource);
+			if (resource != null)
+				ret.put(resourceId, resource);
 		}
 
+		return ret;
+	}
+
+	public List<OpencrxResourceAssignment> resourceAssignmentsShowForTask(
+			final String activityId) throws IOException {
+
+		List<OpencrxResourceAssignment> assignments = new LinkedList<OpencrxResourceAssignment>();
+
+		new ListPagedQuery<OpencrxResourceAssignment>(assignments) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/",
+								activityId, "/",
+								ACTIVITY_PROPERTY_ASSIGNED_RESOURCE).toString(),
+						KEY_POSITION, position, KEY_SIZE, size);
+			}
+
+			@Override
+			protected boolean readPage(List<OpencrxResourceAssignment> page,
+					String url) throws IOException {
+				return utils.getResourceAssignments(page, url);
+			}
+		}.execute(executor);
+
 		return assignments;
 	}
 
@@ -827,29 +1202,78 @@ public class OpencrxInvoker {
 		utils.executePost(url, data);
 	}
 
-	public int getSecondsSpentOnTask(String activityId, String resourceId)
-			throws ApiServiceException, IOException {
-		int position = 0;
+	public int getSecondsSpentOnTask(final String activityId,
+			final String resourceId) throws ApiServiceException, IOException {
 
-		int seconds = 0;
+		if (TextUtils.isEmpty(resourceId))
+			return 0;
 
-		for (;;) {
-			String url = createFetchUrl(
-					TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/", activityId,
-							"/", "workReportEntry").toString(), KEY_POSITION,
-					position, KEY_SIZE, SIZE);
+		final int[] seconds = new int[1];
 
-			int res = utils.getWorkTimeInSeconds(url, resourceId);
+		new OpencrxPagedQuery<int[]>(SIZE) {
+			@Override
+			protected String createPageUrl(int position, int size)
+					throws ApiServiceException {
+				return createFetchUrl(
+						TextUtils.concat(opencrxUrl, XRI_ACTIVITY, "/",
+								activityId, "/", "workReportEntry").toString(),
+						KEY_POSITION, position, KEY_SIZE, size);
+			}
 
-			seconds += Math.abs(res);
+			@Override
+			protected int[] createPage() {
+				return new int[1];
+			}
 
-			if (res < 0)
-				position += SIZE;
-			else
-				break;
+			@Override
+			protected boolean readPage(int[] page, String url)
+					throws IOException {
+				return utils.getWorkTimeInSeconds(page, url, resourceId);
+			}
+
+			@Override
+			protected void mergePage(int[] page) {
+				seconds[0] += page[0];
+			}
+		}.execute(executor);
+
+		return seconds[0];
+	}
+
+	/**
+	 * Reads work time of resource on activities concurrently
+	 * 
+	 * @return map of activity id to seconds
+	 */
+	public HashMap<String, Integer> getSecondsSpentOnTasks(
+			List<String> activityIds, final String resourceId)
+			throws IOException {
+
+		HashMap<String, Integer> ret = new HashMap<String, Integer>();
+
+		if (TextUtils.isEmpty(resourceId)) {
+			for (String activityId : activityIds)
+				ret.put(activityId, 0);
+			return ret;
+		}
+
+		List<Callable<Integer>> requests = new ArrayList<Callable<Integer>>();
+
+		for (final String activityId : activityIds) {
+			requests.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return getSecondsSpentOnTask(activityId, resourceId);
+				}
+			});
 		}
 
-		return seconds;
+		List<Integer> seconds = executor.invokeAll(requests);
+
+		int i = 0;
+		for (String activityId : activityIds)
+			ret.put(activityId, seconds.get(i++));
+
+		return ret;
 	}
 
 	public void createWorkRecord(String activityId, String resourceId,
@@ -872,6 +1296,62 @@ public class OpencrxInvoker {
 
 	private final OpencrxUtils utils = new OpencrxUtils();
 
+	private final OpencrxRequestExecutor executor;
+
+	private final OpencrxResourceCache resourceCache;
+
+	/** process and state of activities by activity id, read during sync */
+	private final ConcurrentHashMap<String, Pair<String, String>> processStates = new ConcurrentHashMap<String, Pair<String, String>>();
+
+	/**
+	 * Paged query collecting pages into JSONArray
+	 */
+	private abstract static class JsonPagedQuery extends
+			OpencrxPagedQuery<JSONArray> {
+
+		private final JSONArray destination;
+
+		public JsonPagedQuery(JSONArray destination) {
+			super(SIZE);
+			this.destination = destination;
+		}
+
+		@Override
+		protected JSONArray createPage() {
+			return new JSONArray();
+		}
+
+		@Override
+		protected void mergePage(JSONArray page) {
+			for (int i = 0; i < page.length(); i++)
+				destination.put(page.opt(i));
+		}
+	}
+
+	/**
+	 * Paged query collecting pages into list
+	 */
+	private abstract static class ListPagedQuery<T> extends
+			OpencrxPagedQuery<List<T>> {
+
+		private final List<T> destination;
+
+		public ListPagedQuery(List<T> destination) {
+			super(SIZE);
+			this.destination = destination;
+		}
+
+		@Override
+		protected List<T> createPage() {
+			return new ArrayList<T>();
+		}
+
+		@Override
+		protected void mergePage(List<T> page) {
+			destination.addAll(page);
+		}
+	}
+
 	String createFetchUrl(String url, Object... getParameters)
 			throws ApiServiceException {
 
@@ -932,6 +1412,8 @@ public class OpencrxInvoker {
 				"%{segment}", segment).replace("%{provider}", provider);
 		XRI_USER_HOME = XRI_USER_HOME_PATTERN.replace("%{segment}", segment)
 				.replace("%{provider}", provider);
+		XRI_ACTIVITY_EXTENT = XRI_ACTIVITY_EXTENT_PATTERN.replace(
+				"%{segment}", segment).replace("%{provider}", provider);
 
 	}
 }
@@ -0,0 +1,81 @@
+package ru.otdelit.astrid.opencrx.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Reads all pages of OpenCRX query. First page is requested alone; if server
+ * reports more results, next pages are requested speculatively in windows of
+ * executor parallelism. Pages are merged in order of position, reading stops
+ * at first page without more results.
+ *
+ * @param <P>
+ *            type of container for one page
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ */
+abstract class OpencrxPagedQuery<P> {
+
+	private final int pageSize;
+
+	public OpencrxPagedQuery(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/** @return url of page starting at given position */
+	protected abstract String createPageUrl(int position, int size)
+			throws ApiServiceException;
+
+	/** @return empty container for one page */
+	protected abstract P createPage();
+
+	/**
+	 * Reads page into container. Called concurrently for pages of one window.
+	 *
+	 * @return true if server has results after this page
+	 */
+	protected abstract boolean readPage(P page, String url) throws IOException;
+
+	/** Merges page into result. Called in order of pages. */
+	protected abstract void mergePage(P page) throws IOException;
+
+	public void execute(OpencrxRequestExecutor executor) throws IOException {
+		int position = 0;
+		int window = 1;
+
+		for (;;) {
+			List<PageRequest> requests = new ArrayList<PageRequest>(window);
+			for (int i = 0; i < window; i++)
+				requests.add(new PageRequest(position + i * pageSize));
+
+			for (PageRequest request : executor.invokeAll(requests)) {
+				mergePage(request.page);
+
+				if (!request.hasMore)
+					return;
+			}
+
+			position += window * pageSize;
+			window = executor.getParallelism();
+		}
+	}
+
+	private class PageRequest implements Callable<PageRequest> {
+
+		private final int position;
+		private final P page = createPage();
+		private boolean hasMore;
+
+		public PageRequest(int position) {
+			this.position = position;
+		}
+
+		public PageRequest call() throws Exception {
+			hasMore = readPage(page, createPageUrl(position, pageSize));
+			return this;
+		}
+	}
+
+}
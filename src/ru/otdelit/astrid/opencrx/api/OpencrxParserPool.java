@@ -0,0 +1,66 @@
+package ru.otdelit.astrid.opencrx.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import ru.otdelit.astrid.opencrx.xml.BaseParser;
+
+/**
+ * Pool of pull parsers. Parser is taken by one thread for the time of parsing,
+ * so responses may be parsed concurrently. Parsers are created on demand, at
+ * most <code>maxIdle</code> of them are kept for reuse.
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ */
+class OpencrxParserPool {
+
+	private final BlockingQueue<XmlPullParser> idle;
+
+	private XmlPullParserFactory factory;
+
+	public OpencrxParserPool(int maxIdle) {
+		idle = new ArrayBlockingQueue<XmlPullParser>(Math.max(1, maxIdle));
+	}
+
+	/**
+	 * Parses xml with given parser
+	 */
+	public void parse(InputStream xml, BaseParser handler) throws IOException,
+			XmlPullParserException {
+		XmlPullParser parser = idle.poll();
+		if (parser == null)
+			parser = createParser();
+
+		boolean reusable = false;
+		try {
+			parser.setInput(xml, null);
+			handler.parse(parser);
+			reusable = true;
+		} finally {
+			// parser failed in the middle of document may keep broken state
+			if (reusable) {
+				parser.setInput((Reader) null);
+				idle.offer(parser);
+			}
+		}
+	}
+
+	private XmlPullParser createParser() throws XmlPullParserException {
+		// factory is not thread-safe
+		synchronized (this) {
+			if (factory == null) {
+				factory = XmlPullParserFactory.newInstance();
+				factory.setNamespaceAware(false);
+			}
+			return factory.newPullParser();
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package ru.otdelit.astrid.opencrx.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executes requests to OpenCRX server concurrently. Number of requests in
+ * flight is limited by parallelism of executor, so one OpenCRX host never
+ * gets more requests than pooled connections of {@link OpencrxRestClient}.
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ */
+public class OpencrxRequestExecutor {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/** equals to max connections per route of rest client */
+	public static final int MAX_PARALLELISM = 8;
+
+	private final int parallelism;
+
+	private ExecutorService executor;
+
+	public OpencrxRequestExecutor(int parallelism) {
+		this.parallelism = Math.max(1, Math.min(parallelism, MAX_PARALLELISM));
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Executes requests and waits for all of them.
+	 *
+	 * @param requests
+	 * @return results in order of requests
+	 * @throws IOException
+	 *             first error thrown by any request
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> requests)
+			throws IOException {
+		List<T> ret = new ArrayList<T>(requests.size());
+
+		// requests issued from request thread are executed in place: waiting
+		// for pool from pool thread can exhaust it
+		if (parallelism == 1 || requests.size() < 2 || isRequestThread()) {
+			for (Callable<T> request : requests)
+				ret.add(call(request));
+			return ret;
+		}
+
+		ExecutorService service = getExecutor();
+
+		List<Future<T>> futures = new ArrayList<Future<T>>(requests.size());
+		for (Callable<T> request : requests)
+			futures.add(service.submit(request));
+
+		try {
+			for (Future<T> future : futures)
+				ret.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			InterruptedIOException ex = new InterruptedIOException(
+					e.getMessage());
+			ex.initCause(e);
+			throw ex;
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} finally {
+			for (Future<T> future : futures)
+				future.cancel(true);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Stops request threads. Executor may be used again after shutdown.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null)
+			executor = Executors.newFixedThreadPool(parallelism,
+					new RequestThreadFactory());
+		return executor;
+	}
+
+	private boolean isRequestThread() {
+		Thread current = Thread.currentThread();
+		return current instanceof RequestThread
+				&& ((RequestThread) current).owner == this;
+	}
+
+	private static <T> T call(Callable<T> request) throws IOException {
+		try {
+			return request.call();
+		} catch (Exception e) {
+			throw unwrap(e);
+		}
+	}
+
+	private static IOException unwrap(Throwable cause) {
+		if (cause instanceof IOException)
+			return (IOException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if (cause instanceof Error)
+			throw (Error) cause;
+		return new ApiServiceException(cause);
+	}
+
+	private class RequestThreadFactory implements ThreadFactory {
+
+		private int count = 0;
+
+		@SuppressWarnings("nls")
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new RequestThread(OpencrxRequestExecutor.this, r,
+					"opencrx-request-" + (++count));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	private static class RequestThread extends Thread {
+
+		private final OpencrxRequestExecutor owner;
+
+		public RequestThread(OpencrxRequestExecutor owner, Runnable r,
+				String name) {
+			super(r, name);
+			this.owner = owner;
+		}
+	}
+
+}
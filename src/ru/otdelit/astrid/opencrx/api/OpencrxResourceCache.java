@@ -0,0 +1,65 @@
+package ru.otdelit.astrid.opencrx.api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Resources read during one synchronization, keyed by resource id. Cache is
+ * bounded, least recently used resources are evicted first. Missing resources
+ * are remembered too, so every resource is requested from server at most once.
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ */
+class OpencrxResourceCache {
+
+	public static final int DEFAULT_MAX_SIZE = 2000;
+
+	private final LinkedHashMap<String, JSONObject> resources;
+
+	public OpencrxResourceCache(final int maxSize) {
+		resources = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, JSONObject> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/** @return true if resource was read, even if server has not found it */
+	public synchronized boolean contains(String resourceId) {
+		return resources.containsKey(resourceId);
+	}
+
+	/** @return resource or null if it is missing or was not read */
+	public synchronized JSONObject get(String resourceId) {
+		return resources.get(resourceId);
+	}
+
+	/**
+	 * @param resource
+	 *            resource or null if server has not found it
+	 */
+	public synchronized void put(String resourceId, JSONObject resource) {
+		resources.put(resourceId, resource);
+	}
+
+	/** Puts all resources of list, i.e. result of resources query */
+	public synchronized void putAll(JSONArray list) {
+		for (int i = 0; i < list.length(); i++) {
+			JSONObject resource = list.optJSONObject(i);
+			if (resource != null && resource.has("id"))
+				resources.put(resource.optString("id"), resource);
+		}
+	}
+
+	public synchronized void clear() {
+		resources.clear();
+	}
+
+}
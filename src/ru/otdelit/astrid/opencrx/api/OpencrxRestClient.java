@@ -1,26 +1,44 @@
 package ru.otdelit.astrid.opencrx.api;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
-
-import android.util.Log;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 
 /**
  * RestClient allows Android to consume web requests.
@@ -39,21 +57,141 @@ public class OpencrxRestClient {
 
 	private static final int TIMEOUT_MILLIS = 30000;
 
-	public DefaultHttpClient getThreadSafeClient(String login, String password) {
-		DefaultHttpClient client = new DefaultHttpClient();
-		ClientConnectionManager mgr = client.getConnectionManager();
-		HttpParams params = client.getParams();
-		HttpConnectionParams.setConnectionTimeout(params, TIMEOUT_MILLIS);
-		HttpConnectionParams.setSoTimeout(params, TIMEOUT_MILLIS);
+	/** max pooled connections to one OpenCRX host */
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 8;
+
+	private static final int MAX_CONNECTIONS_TOTAL = 16;
+
+	/** keep-alive used when server does not send Keep-Alive header */
+	private static final long KEEP_ALIVE_MILLIS = 60000;
+
+	/** pooled connections idle for longer than this are closed */
+	private static final long IDLE_CONNECTION_MILLIS = 30000;
 
-		client = new DefaultHttpClient(new ThreadSafeClientConnManager(params,
-				mgr.getSchemeRegistry()), params);
+	/** map of login to long-lived client of that account */
+	private static final HashMap<String, DefaultHttpClient> clients = new HashMap<String, DefaultHttpClient>();
+
+	private static long lastEviction = 0;
+
+	/**
+	 * Returns shared client for given account. Client is created once and
+	 * reuses pooled keep-alive connections between requests.
+	 * 
+	 * @param login
+	 * @param password
+	 * @return
+	 */
+	public static synchronized DefaultHttpClient getThreadSafeClient(
+			String login, String password) {
+		DefaultHttpClient client = clients.get(login);
+
+		if (client == null) {
+			client = createClient();
+			clients.put(login, client);
+		}
+
+		// credentials are cheap to reset and may change after re-login
 		client.getCredentialsProvider().setCredentials(AuthScope.ANY,
 				new UsernamePasswordCredentials(login, password));
 
+		evictIdleConnections();
+
+		return client;
+	}
+
+	/**
+	 * Closes all pooled connections and forgets shared clients. Called when
+	 * user signs out.
+	 */
+	public static synchronized void shutdown() {
+		for (DefaultHttpClient client : clients.values())
+			client.getConnectionManager().shutdown();
+
+		clients.clear();
+	}
+
+	private static DefaultHttpClient createClient() {
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, TIMEOUT_MILLIS);
+		HttpConnectionParams.setSoTimeout(params, TIMEOUT_MILLIS);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+		ConnManagerParams.setTimeout(params, TIMEOUT_MILLIS);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS_TOTAL);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory //$NON-NLS-1$
+				.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory //$NON-NLS-1$
+				.getSocketFactory(), 443));
+
+		DefaultHttpClient client = new DefaultHttpClient(
+				new ThreadSafeClientConnManager(params, registry), params);
+
+		client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : KEEP_ALIVE_MILLIS;
+			}
+		});
+
+		// send credentials with the first request instead of waiting for
+		// 401 challenge on every connection
+		client.addRequestInterceptor(new PreemptiveAuthInterceptor(), 0);
+
 		return client;
 	}
 
+	private static void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		if (now - lastEviction < IDLE_CONNECTION_MILLIS)
+			return;
+
+		lastEviction = now;
+
+		for (DefaultHttpClient client : clients.values()) {
+			ClientConnectionManager mgr = client.getConnectionManager();
+			mgr.closeExpiredConnections();
+			mgr.closeIdleConnections(IDLE_CONNECTION_MILLIS,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static class PreemptiveAuthInterceptor implements
+			HttpRequestInterceptor {
+
+		@Override
+		public void process(HttpRequest request, HttpContext context)
+				throws HttpException, IOException {
+			AuthState authState = (AuthState) context
+					.getAttribute(ClientContext.TARGET_AUTH_STATE);
+
+			if (authState == null || authState.getAuthScheme() != null)
+				return;
+
+			CredentialsProvider credentialsProvider = (CredentialsProvider) context
+					.getAttribute(ClientContext.CREDS_PROVIDER);
+			HttpHost host = (HttpHost) context
+					.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+
+			if (credentialsProvider == null || host == null)
+				return;
+
+			Credentials credentials = credentialsProvider
+					.getCredentials(new AuthScope(host.getHostName(), host
+							.getPort()));
+
+			if (credentials != null) {
+				authState.setAuthScheme(new BasicScheme());
+				authState.setCredentials(credentials);
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * @param response
@@ -95,7 +233,8 @@ public class OpencrxRestClient {
 	 * Issue an HTTP GET for the given URL, return the response using given
 	 * authorization credentials.
 	 * 
-	 * NOTE: close stream before using RestClient again
+	 * NOTE: close stream to return connection into pool. Methods of
+	 * RestClient may be called from several threads at once.
 	 * 
 	 * @param url
 	 *            url with url-encoded params
@@ -106,7 +245,7 @@ public class OpencrxRestClient {
 	 * @return response stream, or null if there was no response
 	 * @throws IOException
 	 */
-	public synchronized InputStream get(String url, String opencrxLogin,
+	public InputStream get(String url, String opencrxLogin,
 			String opencrxPassword) throws IOException {
 
 		try {
@@ -125,7 +264,7 @@ public class OpencrxRestClient {
 	}
 
 	@SuppressWarnings("nls")
-	public synchronized InputStream post(String url, String data, String login,
+	public InputStream post(String url, String data, String login,
 			String password) throws IOException {
 		try {
 			HttpPost httpPost = new HttpPost(url);
@@ -144,7 +283,7 @@ public class OpencrxRestClient {
 		}
 	}
 
-	public synchronized InputStream delete(String url, String login,
+	public InputStream delete(String url, String login,
 			String password) throws IOException {
 		try {
 			HttpDelete httpDelete = new HttpDelete(url);
@@ -162,7 +301,7 @@ public class OpencrxRestClient {
 	}
 
 	@SuppressWarnings("nls")
-	public synchronized InputStream put(String url, String data, String login,
+	public InputStream put(String url, String data, String login,
 			String password) throws IOException {
 		try {
 			HttpPut httpPut = new HttpPut(url);
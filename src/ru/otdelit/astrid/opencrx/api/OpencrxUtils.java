@@ -5,26 +5,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
-import java.util.TimeZone;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.util.Map;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
-import org.xml.sax.SAXException;
 
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessGraph;
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessState;
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessTransition;
 import ru.otdelit.astrid.opencrx.sync.OpencrxContact;
+import ru.otdelit.astrid.opencrx.sync.OpencrxRemoteActivity;
 import ru.otdelit.astrid.opencrx.sync.OpencrxResourceAssignment;
 import ru.otdelit.astrid.opencrx.xml.ActivityCreationResultParser;
 import ru.otdelit.astrid.opencrx.xml.ActivityCreatorParser;
@@ -47,7 +40,6 @@ import ru.otdelit.astrid.opencrx.xml.WorkRecordParser;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.todoroo.andlib.utility.DateUtilities;
 import com.todoroo.andlib.utility.Pair;
 
 /**
@@ -68,33 +60,33 @@ public class OpencrxUtils {
 
 	public static final String TAG = "Opencrx";
 
-	private static SimpleDateFormat opencrxTimeFormatter;
-	private static SimpleDateFormat opencrxToProducteevTimeFormatter;
-
-	private static SAXParserFactory factory = SAXParserFactory.newInstance();
-	private static SAXParser xmlParser;
+	// requests are parsed concurrently, one reader per request in flight
+	private static final OpencrxParserPool parsers = new OpencrxParserPool(
+			OpencrxRequestExecutor.MAX_PARALLELISM);
 
 	public void setCredentials(String login, String password) {
 		retryLogin = login;
 		retryPassword = password;
 	}
 
-	public String getActivityProcessId(String url) throws ApiServiceException {
+	/**
+	 * @return id of activity process and its modification time in millis
+	 */
+	public Pair<String, Long> getActivityProcessIdAndVersion(String url)
+			throws ApiServiceException {
 		InputStream xml = null;
 
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ActivityProcessParser p = new ActivityProcessParser();
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
 
-			return p.getId();
+			return new Pair<String, Long>(p.getId(), p.getModifiedAt());
 
 		} catch (Exception e) {
 			throw new ApiServiceException(e);
@@ -114,11 +106,9 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ActivityCurrentProcessParser p = new ActivityCurrentProcessParser();
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return new Pair<String, String>(p.getProcessId(),
 					p.getProcessStateId());
@@ -135,26 +125,31 @@ public class OpencrxUtils {
 		}
 	}
 
-	public int getWorkTimeInSeconds(String url, String resourceId)
-			throws ApiServiceException {
+	/**
+	 * Adds seconds of work records of given resource to dest[0]
+	 * 
+	 * @return true if there are more work records
+	 */
+	public boolean getWorkTimeInSeconds(int[] dest, String url,
+			String resourceId) throws ApiServiceException {
 		InputStream xml = null;
 		try {
 
 			if (TextUtils.isEmpty(resourceId))
-				return 0;
+				return false;
 
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			WorkRecordParser p = new WorkRecordParser(resourceId);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
 
-			return p.hasMore() ? -p.getElapsedSeconds() : p.getElapsedSeconds();
+			dest[0] += p.getElapsedSeconds();
+
+			return p.hasMore();
 
 		} catch (Exception e) {
 			throw new ApiServiceException(e);
@@ -168,17 +163,17 @@ public class OpencrxUtils {
 		}
 	}
 
-	public void getOpencrxContacts(List<OpencrxContact> destination, String url)
-			throws ApiServiceException {
+	public boolean getOpencrxContacts(List<OpencrxContact> destination,
+			String url) throws ApiServiceException {
 		InputStream xml = null;
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ContactParser p = new ContactParser(destination);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
+
+			return p.hasMore();
 
 		} catch (Exception e) {
 			throw new ApiServiceException(e);
@@ -196,11 +191,9 @@ public class OpencrxUtils {
 	private String getPropertySetAddress(InputStream xml)
 			throws ApiServiceException {
 		try {
-			SAXParser parser = getParser();
-
 			PropertySetParser p = new PropertySetParser();
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return p.getId();
 
@@ -258,11 +251,9 @@ public class OpencrxUtils {
 		InputStream xml = null;
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
-			SAXParser parser = getParser();
-
 			ReferencePropertyParser p = new ReferencePropertyParser();
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return p.getReferenceValueXri();
 
@@ -284,11 +275,9 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ReferencePropertyParser p = new ReferencePropertyParser();
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return p.getReferencePropertyAddress();
 
@@ -311,11 +300,9 @@ public class OpencrxUtils {
 
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ResourceContactIdParser p = new ResourceContactIdParser(dest);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
@@ -334,19 +321,23 @@ public class OpencrxUtils {
 		}
 	}
 
-	public boolean getFollowUpsAddNote(List<String> dest, String url,
-			String transitionId) throws ApiServiceException {
+	/**
+	 * Reads follow-ups of many activities
+	 * 
+	 * @param dest
+	 *            texts of follow-ups by activity id
+	 */
+	public boolean getFollowUpsAddNote(Map<String, List<String>> dest,
+			String url, String transitionId) throws ApiServiceException {
 		InputStream xml = null;
 		try {
 
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ActiviyFollowUpParser p = new ActiviyFollowUpParser(dest,
 					transitionId);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
@@ -374,11 +365,9 @@ public class OpencrxUtils {
 
 			List<String> ret = new LinkedList<String>();
 
-			SAXParser parser = getParser();
-
 			CreatorActivityGroupParser p = new CreatorActivityGroupParser(ret);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return ret;
 		} catch (Exception e) {
@@ -393,8 +382,8 @@ public class OpencrxUtils {
 		}
 	}
 
-	private boolean convertOpencrxActivitiesToJson(JSONArray destination,
-			InputStream xml, OpencrxActivityProcessGraph graph)
+	private boolean readOpencrxActivities(
+			List<OpencrxRemoteActivity> destination, InputStream xml, OpencrxActivityProcessGraph graph)
 			throws ApiServiceException {
 		try {
 			OpencrxActivityProcessState complete = graph
@@ -410,11 +399,9 @@ public class OpencrxUtils {
 			if (closed != null && closed.getId() != null)
 				closedId = closed.getId();
 
-			SAXParser parser = getParser();
-
 			BaseParser p = new ActivityParser(destination, completeId, closedId);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return p.hasMore();
 
@@ -430,16 +417,14 @@ public class OpencrxUtils {
 		}
 	}
 
-	private JSONObject convertOpencrxActivityToJson(InputStream xml,
+	private OpencrxRemoteActivity readOpencrxActivity(InputStream xml,
 			OpencrxActivityProcessGraph graph) throws ApiServiceException {
-		JSONArray temp = new JSONArray();
-
-		this.convertOpencrxActivitiesToJson(temp, xml, graph);
+		List<OpencrxRemoteActivity> temp = new LinkedList<OpencrxRemoteActivity>();
 
 		try {
-			return temp.length() == 0 ? null : temp.getJSONObject(0);
-		} catch (JSONException e) {
-			throw new ApiServiceException(e);
+			this.readOpencrxActivities(temp, xml, graph);
+
+			return temp.isEmpty() ? null : temp.get(0);
 		} finally {
 			try {
 				if (xml != null)
@@ -450,13 +435,14 @@ public class OpencrxUtils {
 		}
 	}
 
-	public boolean getOpencrxActivities(JSONArray destination, String url,
+	public boolean getOpencrxActivities(
+			List<OpencrxRemoteActivity> destination, String url,
 			OpencrxActivityProcessGraph graph) throws ApiServiceException {
 		InputStream xml = null;
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			return this.convertOpencrxActivitiesToJson(destination, xml, graph);
+			return this.readOpencrxActivities(destination, xml, graph);
 
 		} catch (Exception e) {
 			throw new ApiServiceException(e);
@@ -470,14 +456,14 @@ public class OpencrxUtils {
 		}
 	}
 
-	public JSONObject modifyActivity(String url, String modificationData,
+	public OpencrxRemoteActivity modifyActivity(String url, String modificationData,
 			OpencrxActivityProcessGraph graph) throws ApiServiceException {
 		InputStream xml = null;
 		try {
 			xml = restClient.put(url, modificationData, retryLogin,
 					retryPassword);
 
-			return this.convertOpencrxActivityToJson(xml, graph);
+			return this.readOpencrxActivity(xml, graph);
 
 		} catch (Exception e) {
 			throw new ApiServiceException(e);
@@ -491,13 +477,13 @@ public class OpencrxUtils {
 		}
 	}
 
-	public JSONObject getOpencrxActivity(String url,
+	public OpencrxRemoteActivity getOpencrxActivity(String url,
 			OpencrxActivityProcessGraph graph) throws ApiServiceException {
 		InputStream xml = null;
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			return this.convertOpencrxActivityToJson(xml, graph);
+			return this.readOpencrxActivity(xml, graph);
 		} catch (Exception e) {
 			throw new ApiServiceException(e);
 		} finally {
@@ -516,11 +502,9 @@ public class OpencrxUtils {
 		InputStream xml = null;
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
-			SAXParser parser = getParser();
-
 			ActivityCreatorParser p = new ActivityCreatorParser(destination);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
@@ -546,11 +530,9 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ResourceParser p = new ResourceParser(ret);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
@@ -576,12 +558,10 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			JSONArray ret = new JSONArray();
 			ResourceParser p = new ResourceParser(ret);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return ret.length() == 0 ? null : ret.getJSONObject(0);
 
@@ -603,11 +583,9 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ResourceAssignmentParser p = new ResourceAssignmentParser(ret);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return p.hasMore();
 
@@ -631,11 +609,9 @@ public class OpencrxUtils {
 					retryLogin).toString();
 
 			xml = restClient.get(url, retryLogin, retryPassword);
-			SAXParser parser = getParser();
-
 			UserHomeParser p = new UserHomeParser();
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			JSONObject ret = new JSONObject();
 			ret.put("id_user", hash(p.getId()));
@@ -661,11 +637,9 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.post(url, createParams, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ActivityCreationResultParser p = new ActivityCreationResultParser();
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			return p.getId();
 
@@ -870,12 +844,10 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ActivityProcessTransitionParser p = new ActivityProcessTransitionParser(
 					dest);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
@@ -903,11 +875,9 @@ public class OpencrxUtils {
 		try {
 			xml = restClient.get(url, retryLogin, retryPassword);
 
-			SAXParser parser = getParser();
-
 			ActivityProcessStateParser p = new ActivityProcessStateParser(dest);
 
-			parser.parse(xml, p);
+			parsers.parse(xml, p);
 
 			if (!p.isResultSet())
 				throw new ApiServiceException("Wrong rest answer.");
@@ -1001,52 +971,11 @@ public class OpencrxUtils {
 
 	public static Date parseFromOpencrx(String opencrxDate)
 			throws ParseException {
-		SimpleDateFormat format = getOpencrxDateFormat();
-
-		return format.parse(opencrxDate);
-	}
-
-	public static String formatAsProducteev(Date date) throws ParseException {
-		SimpleDateFormat format = getProducteevDateFormat();
-
-		return format.format(date);
+		return new Date(OpencrxDateCodec.parse(opencrxDate));
 	}
 
 	public static String formatAsOpencrx(long millis) {
-		SimpleDateFormat format = getOpencrxDateFormat();
-
-		return format.format(DateUtilities.unixtimeToDate(millis));
-	}
-
-	// ------------------------------------------------------------------------------------------------
-	// helper methods
-	// ------------------------------------------------------------------------------------------------
-
-	private static SAXParser getParser() throws ParserConfigurationException,
-			SAXException {
-		if (xmlParser == null) {
-			xmlParser = factory.newSAXParser();
-		}
-		xmlParser.reset();
-		return xmlParser;
-	}
-
-	private static SimpleDateFormat getProducteevDateFormat() {
-		if (opencrxToProducteevTimeFormatter == null) {
-			opencrxToProducteevTimeFormatter = new SimpleDateFormat(
-					"EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
-		}
-		return opencrxToProducteevTimeFormatter;
-	}
-
-	private static SimpleDateFormat getOpencrxDateFormat() {
-		if (opencrxTimeFormatter == null) {
-			opencrxTimeFormatter = new SimpleDateFormat(
-					"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-			;
-			opencrxTimeFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-		}
-		return opencrxTimeFormatter;
+		return OpencrxDateCodec.format(millis);
 	}
 
 }
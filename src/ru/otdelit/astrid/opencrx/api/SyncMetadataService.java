@@ -6,14 +6,28 @@
 package ru.otdelit.astrid.opencrx.api;
 
 import java.util.ArrayList;
-
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
 
 import com.todoroo.andlib.data.Property;
 import com.todoroo.andlib.data.TodorooCursor;
 import com.todoroo.andlib.sql.Criterion;
 import com.todoroo.andlib.sql.Order;
 import com.todoroo.andlib.sql.Query;
+import com.todoroo.astrid.api.AstridApiConstants;
 import com.todoroo.astrid.data.Metadata;
 import ru.otdelit.astrid.opencrx.api.MetadataDao;
 import com.todoroo.astrid.data.MetadataApiDao.MetadataCriteria;
@@ -33,6 +47,25 @@ abstract public class SyncMetadataService<TYPE extends SyncContainer> {
 	protected final TaskApiDao taskDao;
 	protected final MetadataDao metadataDao;
 
+	protected final ContentResolver contentResolver;
+
+	private final Context context;
+
+	/** number of tasks written in one batch */
+	public static final int WRITE_BATCH_SIZE = 200;
+
+	/** tasks not written yet, in order of saving */
+	private final ArrayList<TYPE> pendingTasks = new ArrayList<TYPE>();
+
+	/** ids of tasks not written yet, new tasks have no id */
+	private final HashSet<Long> pendingIds = new HashSet<Long>();
+
+	/** number of tasks whose metadata is read with one query */
+	public static final int READ_BATCH_SIZE = 200;
+
+	/** metadata read ahead for task cursor being read, null if none */
+	private MetadataReader metadataReader;
+
 	// --- abstract methods
 
 	/** @return metadata key identifying this sync provider's metadata */
@@ -65,27 +98,32 @@ abstract public class SyncMetadataService<TYPE extends SyncContainer> {
 	public SyncMetadataService(Context context) {
 		taskDao = new TaskApiDao(context);
 		metadataDao = new MetadataDao(context);
+		contentResolver = context.getContentResolver();
+		this.context = context;
 	}
 
 	/**
 	 * Clears metadata information. Used when user logs out of sync provider
 	 */
 	public void clearMetadata() {
+		closeMetadataReader();
 		metadataDao.deleteWhere(Metadata.KEY.eq(getMetadataKey()));
+		clearLocallyUpdatedMarks();
 	}
 
 	/**
-	 * Gets cursor across all task metadata for joining
+	 * Gets criterion matching tasks with remote metadata. Metadata is
+	 * selected by subquery, so database joins it with tasks.
 	 * 
-	 * @return cursor
+	 * @return criterion
 	 */
-	private TodorooCursor<Metadata> getRemoteTaskMetadata() {
-		return metadataDao.query(Query
+	private Criterion hasRemoteTaskMetadata() {
+		return Task.ID.in(Query
 				.select(Metadata.TASK)
+				.from(Metadata.TABLE)
 				.where(Criterion.and(
 						MetadataCriteria.withKey(getMetadataKey()),
-						getMetadataWithRemoteId()))
-				.orderBy(Order.asc(Metadata.TASK)));
+						getMetadataWithRemoteId())));
 	}
 
 	/**
@@ -95,12 +133,12 @@ abstract public class SyncMetadataService<TYPE extends SyncContainer> {
 	 * @return
 	 */
 	public TodorooCursor<Task> getLocallyCreated(Property<?>... properties) {
-		TodorooCursor<Task> tasks = taskDao.query(Query
-				.select(Task.ID)
+		return taskDao.query(Query
+				.select(properties)
 				.where(Criterion.and(TaskCriteria.isActive(),
-						TaskCriteria.ownedByMe())).orderBy(Order.asc(Task.ID)));
-
-		return joinWithMetadata(tasks, false, properties);
+						TaskCriteria.ownedByMe(),
+						Criterion.not(hasRemoteTaskMetadata())))
+				.orderBy(Order.asc(Task.ID)));
 	}
 
 	/**
@@ -110,44 +148,56 @@ abstract public class SyncMetadataService<TYPE extends SyncContainer> {
 	 * @return null if never sync'd
 	 */
 	public TodorooCursor<Task> getLocallyUpdated(Property<?>... properties) {
-		TodorooCursor<Task> tasks;
 		long lastSyncDate = getUtilities().getLastSyncDate();
 		if (lastSyncDate == 0)
-			tasks = taskDao.query(Query.select(Task.ID).where(Criterion.none));
-		else
-			tasks = taskDao.query(Query
-					.select(Task.ID)
-					.where(Criterion.and(TaskCriteria.ownedByMe(),
-							Task.MODIFICATION_DATE.gt(lastSyncDate)))
-					.orderBy(Order.asc(Task.ID)));
-		tasks = filterLocallyUpdated(tasks, lastSyncDate);
-
-		return joinWithMetadata(tasks, true, properties);
+			return taskDao.query(Query.select(properties).where(
+					Criterion.none));
+
+		return taskDao.query(Query
+				.select(properties)
+				.where(Criterion.and(TaskCriteria.ownedByMe(),
+						Task.MODIFICATION_DATE.gt(lastSyncDate),
+						filterLocallyUpdated(lastSyncDate),
+						hasRemoteTaskMetadata()))
+				.orderBy(Order.asc(Task.ID)));
 	}
 
 	/**
-	 * @param tasks
-	 * @param lastSyncDate
+	 * @return metadata key marking tasks updated locally before sync
 	 */
-	protected TodorooCursor<Task> filterLocallyUpdated(
-			TodorooCursor<Task> tasks, long lastSyncDate) {
-		// override hook
-		return tasks;
+	private String getUpdatedMarkKey() {
+		return getMetadataKey() + "-updated"; //$NON-NLS-1$
 	}
 
-	private TodorooCursor<Task> joinWithMetadata(TodorooCursor<Task> tasks,
-			boolean both, Property<?>... properties) {
+	/**
+	 * Marks tasks modified since last sync, so they are told apart from tasks
+	 * written during sync. Marks of previous sync are removed first. If
+	 * marking fails, sync must not go on, as unmarked tasks would be
+	 * overwritten by remote ones.
+	 * 
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 */
+	public void markLocallyUpdated() throws RemoteException,
+			OperationApplicationException {
+		clearLocallyUpdatedMarks();
+
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		TodorooCursor<Task> tasks = getLocallyUpdated(Task.ID);
 		try {
-			TodorooCursor<Metadata> metadata = getRemoteTaskMetadata();
-			try {
-				ArrayList<Long> matchingRows = new ArrayList<Long>();
-				joinRows(tasks, metadata, matchingRows, both);
-
-				return taskDao.query(Query.select(properties).where(
-						Task.ID.in(matchingRows.toArray(new Long[matchingRows
-								.size()]))));
-			} finally {
-				metadata.close();
+			for (tasks.moveToFirst(); !tasks.isAfterLast(); tasks.moveToNext()) {
+				ContentValues values = new ContentValues();
+				values.put(Metadata.KEY.name, getUpdatedMarkKey());
+				values.put(Metadata.TASK.name, tasks.getLong(0));
+				operations.add(ContentProviderOperation
+						.newInsert(Metadata.CONTENT_URI).withValues(values)
+						.build());
+
+				if (operations.size() >= WRITE_BATCH_SIZE || tasks.isLast()) {
+					contentResolver.applyBatch(
+							Metadata.CONTENT_URI.getAuthority(), operations);
+					operations.clear();
+				}
 			}
 		} finally {
 			tasks.close();
@@ -155,41 +205,58 @@ abstract public class SyncMetadataService<TYPE extends SyncContainer> {
 	}
 
 	/**
-	 * Join rows from two cursors on the first column, assuming its an id column
-	 * 
-	 * @param left
-	 * @param right
-	 * @param matchingRows
-	 * @param both
-	 *            - if false, returns rows no right row exists, if true, returns
-	 *            rows where both exist
+	 * Removes marks of {@link #markLocallyUpdated()}
 	 */
-	private static void joinRows(TodorooCursor<?> left, TodorooCursor<?> right,
-			ArrayList<Long> matchingRows, boolean both) {
-
-		left.moveToPosition(-1);
-		right.moveToFirst();
+	public void clearLocallyUpdatedMarks() {
+		metadataDao.deleteWhere(Metadata.KEY.eq(getUpdatedMarkKey()));
+	}
 
-		while (true) {
-			left.moveToNext();
-			if (left.isAfterLast())
-				break;
-			long leftValue = left.getLong(0);
+	/**
+	 * Gets tasks marked by {@link #markLocallyUpdated()}
+	 * 
+	 * @param properties
+	 * @return
+	 */
+	public TodorooCursor<Task> getMarkedLocallyUpdated(
+			Property<?>... properties) {
+		return taskDao.query(Query
+				.select(properties)
+				.where(Task.ID.in(Query.select(Metadata.TASK)
+						.from(Metadata.TABLE)
+						.where(Metadata.KEY.eq(getUpdatedMarkKey()))))
+				.orderBy(Order.asc(Task.ID)));
+	}
 
-			// advance right until it is equal or bigger
-			while (!right.isAfterLast() && right.getLong(0) < leftValue) {
-				right.moveToNext();
-			}
+	/**
+	 * Tells which of given tasks are marked by {@link #markLocallyUpdated()}
+	 * 
+	 * @param taskIds
+	 * @return ids of marked tasks
+	 */
+	public HashSet<Long> getMarkedLocallyUpdated(List<Long> taskIds) {
+		HashSet<Long> ret = new HashSet<Long>();
+
+		// tasks are queried by READ_BATCH_SIZE, like metadata read ahead
+		for (int i = 0; i < taskIds.size(); i += READ_BATCH_SIZE) {
+			List<Long> ids = taskIds.subList(i,
+					Math.min(i + READ_BATCH_SIZE, taskIds.size()));
+			for (Map.Entry<Long, ArrayList<Metadata>> entry : metadataDao
+					.readMetadata(ids, Metadata.KEY.eq(getUpdatedMarkKey()))
+					.entrySet())
+				if (!entry.getValue().isEmpty())
+					ret.add(entry.getKey());
+		}
 
-			if (right.isAfterLast()) {
-				if (!both)
-					matchingRows.add(leftValue);
-				continue;
-			}
+		return ret;
+	}
 
-			if ((right.getLong(0) == leftValue) == both)
-				matchingRows.add(leftValue);
-		}
+	/**
+	 * @param lastSyncDate
+	 * @return criterion for locally updated tasks to synchronize
+	 */
+	protected Criterion filterLocallyUpdated(long lastSyncDate) {
+		// override hook
+		return Criterion.all;
 	}
 
 	/**
@@ -222,36 +289,249 @@ abstract public class SyncMetadataService<TYPE extends SyncContainer> {
 	public void saveTaskAndMetadata(TYPE task) {
 		task.prepareForSaving();
 		taskDao.save(task.task);
+		invalidateMetadataReader(task.task.getId());
 		metadataDao.synchronizeMetadata(task.task.getId(), task.metadata,
 				getMetadataCriteria());
 	}
 
 	/**
-	 * Reads a task and its metadata
+	 * Saves a task and its metadata together with other tasks, once
+	 * {@link #WRITE_BATCH_SIZE} tasks are saved or
+	 * {@link #flushTaskAndMetadata()} is called. Task is flushed when it is
+	 * read again.
 	 * 
 	 * @param task
-	 * @return
 	 */
-	public TYPE readTaskAndMetadata(TodorooCursor<Task> taskCursor) {
-		Task task = new Task(taskCursor);
+	public void batchSaveTaskAndMetadata(TYPE task) {
+		task.prepareForSaving();
 
-		ArrayList<Metadata> metadata = new ArrayList<Metadata>();
-		TodorooCursor<Metadata> metadataCursor = metadataDao.query(Query
-				.select(Metadata.PROPERTIES).where(
-						Criterion.and(MetadataCriteria.byTask(task.getId()),
-								getMetadataCriteria())));
+		// same task twice in batch would be compared with stale metadata
+		if (pendingIds.contains(task.task.getId()))
+			flushTaskAndMetadata();
+
+		pendingTasks.add(task);
+		if (task.task.getId() != Task.NO_ID)
+			pendingIds.add(task.task.getId());
+
+		if (pendingTasks.size() >= WRITE_BATCH_SIZE)
+			flushTaskAndMetadata();
+	}
+
+	/**
+	 * Writes tasks saved with {@link #batchSaveTaskAndMetadata(SyncContainer)}
+	 * and their metadata in one batch. Metadata of each task follows its
+	 * task, so new task is not left without its remote id even if provider
+	 * does not apply batch in one transaction.
+	 */
+	@SuppressWarnings("nls")
+	public void flushTaskAndMetadata() {
+		if (pendingTasks.isEmpty())
+			return;
+
+		for (Long taskId : pendingIds)
+			invalidateMetadataReader(taskId);
+
+		// only writing is timed, not reading which precedes it
+		long writeStart = 0;
+		long writeTime = 0;
 		try {
-			for (metadataCursor.moveToFirst(); !metadataCursor.isAfterLast(); metadataCursor
-					.moveToNext()) {
-				metadata.add(new Metadata(metadataCursor));
+			HashMap<Long, ArrayList<Metadata>> existing = metadataDao
+					.readMetadata(pendingIds, getMetadataCriteria());
+			HashSet<Long> uncompleted = getUncompleted(pendingIds);
+
+			ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+			int[] taskOperations = new int[pendingTasks.size()];
+
+			for (int i = 0; i < pendingTasks.size(); i++) {
+				Task task = pendingTasks.get(i).task;
+				ArrayList<Metadata> metadata = pendingTasks.get(i).metadata;
+
+				if (task.getId() == Task.NO_ID) {
+					taskOperations[i] = operations.size();
+					operations.add(ContentProviderOperation
+							.newInsert(Task.CONTENT_URI)
+							.withValues(task.getMergedValues()).build());
+					MetadataDao.addSynchronizeOperations(operations,
+							Task.NO_ID, taskOperations[i], metadata,
+							new ArrayList<Metadata>());
+				} else {
+					taskOperations[i] = -1;
+					if (task.getSetValues() != null)
+						operations.add(ContentProviderOperation
+								.newUpdate(
+										Uri.withAppendedPath(Task.CONTENT_URI,
+												Long.toString(task.getId())))
+								.withValues(task.getSetValues()).build());
+					MetadataDao.addSynchronizeOperations(operations,
+							task.getId(), -1, metadata,
+							existing.get(task.getId()));
+				}
+			}
+
+			writeStart = System.currentTimeMillis();
+			ContentProviderResult[] results = contentResolver.applyBatch(
+					Task.CONTENT_URI.getAuthority(), operations);
+			writeTime = System.currentTimeMillis() - writeStart;
+
+			// new tasks get their ids like saved by dao
+			for (int i = 0; i < pendingTasks.size(); i++) {
+				if (taskOperations[i] < 0)
+					continue;
+				Uri uri = results[taskOperations[i]].uri;
+				pendingTasks.get(i).task.setId(Long.parseLong(uri
+						.getLastPathSegment()));
+			}
+
+			// batch skips after-save hooks of task dao, so completion is
+			// announced here, as repeating tasks are handled on it
+			for (TYPE container : pendingTasks) {
+				Task task = container.task;
+				if (uncompleted.contains(task.getId())
+						&& task.containsNonNullValue(Task.COMPLETION_DATE)
+						&& task.isCompleted())
+					broadcastCompleted(task.getId());
 			}
+		} catch (Exception e) {
+			// batch may be applied partly: new tasks written with their
+			// metadata are found by remote id, saving again is idempotent
+			Log.e(OpencrxUtils.TAG, "Task batch failed, writing by task", e);
+			if (writeStart == 0)
+				writeStart = System.currentTimeMillis();
+			for (TYPE task : pendingTasks) {
+				findLocalMatch(task);
+				taskDao.save(task.task);
+				metadataDao.synchronizeMetadata(task.task.getId(),
+						task.metadata, getMetadataCriteria());
+			}
+			writeTime = System.currentTimeMillis() - writeStart;
+		} finally {
+			long time = Math.max(1, writeTime);
+			Log.i(OpencrxUtils.TAG, "Saved " + pendingTasks.size()
+					+ " tasks in " + time + " ms, " + pendingTasks.size()
+					* 1000L / time + " tasks/s");
+
+			pendingTasks.clear();
+			pendingIds.clear();
+		}
+	}
+
+	/**
+	 * @param taskIds
+	 * @return ids of given tasks which are not completed
+	 */
+	private HashSet<Long> getUncompleted(HashSet<Long> taskIds) {
+		HashSet<Long> ret = new HashSet<Long>();
+		if (taskIds.isEmpty())
+			return ret;
+
+		TodorooCursor<Task> cursor = taskDao.query(Query.select(Task.ID)
+				.where(Criterion.and(
+						Task.ID.in(taskIds.toArray(new Long[taskIds.size()])),
+						Task.COMPLETION_DATE.eq(0))));
+		try {
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext())
+				ret.add(cursor.getLong(0));
 		} finally {
-			metadataCursor.close();
+			cursor.close();
 		}
+		return ret;
+	}
+
+	/**
+	 * Sends broadcast which task dao sends when it saves completed task
+	 */
+	private void broadcastCompleted(long taskId) {
+		Intent broadcastIntent = new Intent(
+				AstridApiConstants.BROADCAST_EVENT_TASK_COMPLETED);
+		broadcastIntent.putExtra(AstridApiConstants.EXTRAS_TASK_ID, taskId);
+		context.sendOrderedBroadcast(broadcastIntent, null);
+	}
+
+	/**
+	 * Reads a task and its metadata. Metadata of next tasks of the cursor is
+	 * queried together with metadata of this task, so reading next rows of
+	 * the same cursor costs no query.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	public TYPE readTaskAndMetadata(TodorooCursor<Task> taskCursor) {
+		Task task = new Task(taskCursor);
+
+		if (pendingIds.contains(task.getId()))
+			flushTaskAndMetadata();
+
+		if (metadataReader != null && metadataReader.tasks != taskCursor)
+			closeMetadataReader();
+		if (metadataReader == null)
+			metadataReader = new MetadataReader(taskCursor);
+
+		ArrayList<Metadata> metadata = metadataReader.read(task.getId());
+
+		// whole cursor is read
+		if (taskCursor.isLast())
+			closeMetadataReader();
 
 		return createContainerFromLocalTask(task, metadata);
 	}
 
+	/**
+	 * Releases metadata read ahead for task cursor being read. Call when
+	 * cursor is not read to its end.
+	 */
+	public void closeMetadataReader() {
+		metadataReader = null;
+	}
+
+	/**
+	 * Makes metadata reader query metadata of task again, as it was changed
+	 */
+	protected void invalidateMetadataReader(long taskId) {
+		if (metadataReader != null)
+			metadataReader.invalidate(taskId);
+	}
+
+	/**
+	 * Metadata of next {@link #READ_BATCH_SIZE} rows of task cursor, read
+	 * ahead with one query. Metadata of task is handed out once, so reading
+	 * the same row again or a changed task queries next rows again.
+	 */
+	private class MetadataReader {
+
+		private final TodorooCursor<Task> tasks;
+
+		/** metadata of tasks not read yet, by task id */
+		private HashMap<Long, ArrayList<Metadata>> metadata = new HashMap<Long, ArrayList<Metadata>>();
+
+		public MetadataReader(TodorooCursor<Task> tasks) {
+			this.tasks = tasks;
+		}
+
+		public ArrayList<Metadata> read(long id) {
+			if (!metadata.containsKey(id))
+				readAhead();
+			return metadata.remove(id);
+		}
+
+		public void invalidate(long id) {
+			metadata.remove(id);
+		}
+
+		/** reads metadata of tasks from current row of cursor on */
+		private void readAhead() {
+			ArrayList<Long> ids = new ArrayList<Long>(READ_BATCH_SIZE);
+
+			int position = tasks.getPosition();
+			do {
+				ids.add(tasks.get(Task.ID));
+			} while (ids.size() < READ_BATCH_SIZE && tasks.moveToNext());
+			tasks.moveToPosition(position);
+
+			metadata = metadataDao.readMetadata(ids, getMetadataCriteria());
+		}
+	}
+
 	/**
 	 * Reads metadata out of a task
 	 * 
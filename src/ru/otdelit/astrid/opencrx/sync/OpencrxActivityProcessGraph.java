@@ -1,171 +1,340 @@
 package ru.otdelit.astrid.opencrx.sync;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Stack;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.todoroo.andlib.data.Property.LongProperty;
+import com.todoroo.andlib.data.Property.StringProperty;
+import com.todoroo.astrid.data.StoreObject;
 /**
-* Respresents graph of OpenCRX ActivityProcess.
+* Respresents graph of OpenCRX ActivityProcess. Graph is compiled on creation:
+* states are numbered, shortest paths between all states are kept as next-hop
+* table. Graph is immutable and may be shared between threads.
 *
 * @author Andrey Marchenko <igendou@gmail.com>
 */
+@SuppressWarnings("nls")
 public class OpencrxActivityProcessGraph {
 
+	/** type of store object keeping graph between syncs */
+	public static final String TYPE = "opencrx-process-graph"; //$NON-NLS-1$
+
+	/** id of ActivityProcess in opencrx */
+	public static final StringProperty PROCESS_ID = new StringProperty(StoreObject.TABLE,
+			StoreObject.ITEM.name);
+
+	/** modification time of ActivityProcess */
+	public static final LongProperty VERSION = new LongProperty(StoreObject.TABLE,
+			StoreObject.VALUE1.name);
+
+	/** states and transitions as json */
+	public static final StringProperty DATA = new StringProperty(StoreObject.TABLE,
+			StoreObject.VALUE2.name);
+
+	/** transitions preferred if there are several shortest paths */
+	private static final List<String> PREFERRED_TRANSITIONS = Arrays.asList(
+			"Assign", "Complete", "Close");
+
 	private final List<OpencrxActivityProcessTransition> transitions;
 	private final List<OpencrxActivityProcessState> states;
 
-	private HashMap<OpencrxActivityProcessState, Boolean> visited;
-	private HashMap<OpencrxActivityProcessState, OpencrxActivityProcessTransition> lastEdge;
-	private HashMap<OpencrxActivityProcessState, List<OpencrxActivityProcessTransition>> edges;
+	private final String processId;
+	private final long version;
+
+	/** states by index */
+	private final OpencrxActivityProcessState[] stateAt;
+
+	private final HashMap<String, Integer> stateIndexById;
+	private final HashMap<String, OpencrxActivityProcessState> stateByName;
+	private final HashMap<String, OpencrxActivityProcessTransition> transitionByName;
+
+	/** [from][to] - transition between states */
+	private final OpencrxActivityProcessTransition[][] edge;
+
+	/** [from][to] - first transition of shortest path between states */
+	private final OpencrxActivityProcessTransition[][] nextHop;
 
 	public OpencrxActivityProcessGraph(
 			List<OpencrxActivityProcessTransition> transitions,
 			List<OpencrxActivityProcessState> states) {
+		this(transitions, states, null, 0);
+	}
+
+	public OpencrxActivityProcessGraph(
+			List<OpencrxActivityProcessTransition> transitions,
+			List<OpencrxActivityProcessState> states, String processId,
+			long version) {
 
 		this.transitions = transitions;
 		this.states = states;
+		this.processId = processId;
+		this.version = version;
+
+		int n = states.size();
+
+		stateAt = states.toArray(new OpencrxActivityProcessState[n]);
+		stateIndexById = new HashMap<String, Integer>(n * 2);
+		stateByName = new HashMap<String, OpencrxActivityProcessState>(n * 2);
+
+		for (int i = n - 1; i >= 0; i--) {
+			if (stateAt[i].getId() != null)
+				stateIndexById.put(stateAt[i].getId(), i);
+			if (stateAt[i].getName() != null)
+				stateByName.put(stateAt[i].getName(), stateAt[i]);
+		}
 
 		normalize();
 
-		preInit();
-	}
+		transitionByName = new HashMap<String, OpencrxActivityProcessTransition>(
+				transitions.size() * 2);
+		edge = new OpencrxActivityProcessTransition[n][n];
 
-	private void normalize(){
-		for (OpencrxActivityProcessTransition trans : transitions){
-			if (trans.getPrevState() != null)
-				trans.setPrevState(this.getStateById(trans.getPrevState().getId()));
-			if (trans.getNextState() != null)
-				trans.setNextState(this.getStateById(trans.getNextState().getId()));
+		for (int i = transitions.size() - 1; i >= 0; i--) {
+			OpencrxActivityProcessTransition trans = transitions.get(i);
+
+			if (trans != null && trans.getName() != null)
+				transitionByName.put(trans.getName(), trans);
+
+			if (isTransitionCorrupted(trans))
+				continue;
+
+			edge[indexOf(trans.getPrevState())][indexOf(trans.getNextState())] = trans;
 		}
+
+		nextHop = new OpencrxActivityProcessTransition[n][n];
+
+		compile();
 	}
 
-	private void init(){
-		for (OpencrxActivityProcessState s : visited.keySet())
-			visited.put(s, Boolean.FALSE);
+	public OpencrxActivityProcessGraph(StoreObject data) throws JSONException {
+		this(new JSONObject(data.getValue(DATA)), data.getValue(PROCESS_ID),
+				data.getValue(VERSION));
 	}
 
-	private void preInit(){
-		visited = new HashMap<OpencrxActivityProcessState, Boolean>();
-		lastEdge = new HashMap<OpencrxActivityProcessState, OpencrxActivityProcessTransition>();
-		edges = new HashMap<OpencrxActivityProcessState, List<OpencrxActivityProcessTransition>>();
+	private OpencrxActivityProcessGraph(JSONObject json, String processId,
+			long version) throws JSONException {
+		this(readTransitions(json), readStates(json), processId, version);
+	}
 
-		for (OpencrxActivityProcessTransition trans : transitions){
+	private static List<OpencrxActivityProcessState> readStates(JSONObject json)
+			throws JSONException {
+		List<OpencrxActivityProcessState> ret = new ArrayList<OpencrxActivityProcessState>();
 
-			if ( isTransitionCorrupted(trans))
-				continue;
+		JSONArray arr = json.getJSONArray("states");
+		for (int i = 0; i < arr.length(); i++) {
+			JSONObject state = arr.getJSONObject(i);
+			ret.add(new OpencrxActivityProcessState(state.optString("id",
+					null), state.optString("name", null)));
+		}
+
+		return ret;
+	}
+
+	/** states of transitions have only ids, see {@link #normalize()} */
+	private static List<OpencrxActivityProcessTransition> readTransitions(
+			JSONObject json) throws JSONException {
+		List<OpencrxActivityProcessTransition> ret = new ArrayList<OpencrxActivityProcessTransition>();
+
+		JSONArray arr = json.getJSONArray("transitions");
+		for (int i = 0; i < arr.length(); i++) {
+			JSONObject item = arr.getJSONObject(i);
+
+			OpencrxActivityProcessTransition trans = new OpencrxActivityProcessTransition();
+			trans.setId(item.optString("id", null));
+			trans.setName(item.optString("name", null));
+			if (item.has("prev"))
+				trans.setPrevState(new OpencrxActivityProcessState(item
+						.getString("prev"), null));
+			if (item.has("next"))
+				trans.setNextState(new OpencrxActivityProcessState(item
+						.getString("next"), null));
+			ret.add(trans);
+		}
+
+		return ret;
+	}
 
-			OpencrxActivityProcessState prev = trans.getPrevState();
-			OpencrxActivityProcessState next = trans.getNextState();
+	/**
+	 * @return states and transitions as json, see {@link #DATA}
+	 */
+	public String toJson() throws JSONException {
+		JSONArray arr = new JSONArray();
+		for (OpencrxActivityProcessState state : states) {
+			JSONObject item = new JSONObject();
+			item.putOpt("id", state.getId());
+			item.putOpt("name", state.getName());
+			arr.put(item);
+		}
 
-			visited.put(prev, Boolean.FALSE);
-			visited.put(next, Boolean.FALSE);
+		JSONObject json = new JSONObject();
+		json.put("states", arr);
 
-			if (edges.get(prev) == null)
-				edges.put(prev, new LinkedList<OpencrxActivityProcessTransition>());
+		arr = new JSONArray();
+		for (OpencrxActivityProcessTransition trans : transitions) {
+			JSONObject item = new JSONObject();
+			item.putOpt("id", trans.getId());
+			item.putOpt("name", trans.getName());
+			if (trans.getPrevState() != null)
+				item.putOpt("prev", trans.getPrevState().getId());
+			if (trans.getNextState() != null)
+				item.putOpt("next", trans.getNextState().getId());
+			arr.put(item);
+		}
+		json.put("transitions", arr);
 
-			edges.get(prev).add(trans);
+		return json.toString();
+	}
+
+	public String getProcessId() {
+		return processId;
+	}
+
+	/** @return modification time of ActivityProcess, 0 if unknown */
+	public long getVersion() {
+		return version;
+	}
 
+	private void normalize(){
+		for (OpencrxActivityProcessTransition trans : transitions){
+			if (trans == null)
+				continue;
+			if (trans.getPrevState() != null)
+				trans.setPrevState(this.getStateById(trans.getPrevState().getId()));
+			if (trans.getNextState() != null)
+				trans.setNextState(this.getStateById(trans.getNextState().getId()));
 		}
 	}
 
-	@SuppressWarnings("nls")
-    public Stack<OpencrxActivityProcessTransition> getPath(OpencrxActivityProcessState from, OpencrxActivityProcessState to){
-		if (from == null || to == null)
-			return null;
+	/**
+	 * Fills next-hop table: breadth-first search to every state over reversed
+	 * transitions, then every state takes transition one step closer to it.
+	 */
+	private void compile(){
+		int n = stateAt.length;
 
-		init();
+		int[] distance = new int[n];
+		int[] queue = new int[n];
 
-		visited.put(from, Boolean.TRUE);
+		for (int to = 0; to < n; to++){
+			Arrays.fill(distance, -1);
+			distance[to] = 0;
 
-		Queue<OpencrxActivityProcessState> q = new LinkedList<OpencrxActivityProcessState>();
-		q.add(from);
+			int head = 0, tail = 0;
+			queue[tail++] = to;
 
-		while(! q.isEmpty()){
-			OpencrxActivityProcessState cur = q.remove();
+			while (head < tail){
+				int cur = queue[head++];
 
-			if (edges.get(cur) == null)
-				continue;
+				for (int prev = 0; prev < n; prev++){
+					if (edge[prev][cur] != null && distance[prev] == -1){
+						distance[prev] = distance[cur] + 1;
+						queue[tail++] = prev;
+					}
+				}
+			}
+
+			for (int from = 0; from < n; from++){
+				if (from == to || distance[from] == -1)
+					continue;
 
-			for (OpencrxActivityProcessTransition e : edges.get(cur)){
-				if (visited.get(e.getNextState()) == null || visited.get(e.getNextState()).equals(Boolean.FALSE)
-						|| "Assign".equals(e.getName()) || "Complete".equals(e.getName()) || "Close".equals(e.getName()) ){
+				OpencrxActivityProcessTransition best = null;
 
-					visited.put(e.getNextState(), Boolean.TRUE);
-					lastEdge.put(e.getNextState(), e);
-					q.add(e.getNextState());
+				for (int next = 0; next < n; next++){
+					OpencrxActivityProcessTransition e = edge[from][next];
 
+					if (e == null || distance[next] != distance[from] - 1)
+						continue;
+
+					if (best == null || (!PREFERRED_TRANSITIONS.contains(best.getName())
+							&& PREFERRED_TRANSITIONS.contains(e.getName())))
+						best = e;
 				}
 
+				nextHop[from][to] = best;
 			}
-
 		}
+	}
 
-		if (visited.get(to) == null || visited.get(to).equals(Boolean.FALSE)){
+	/**
+	 * @return transitions from one state to another, first transition on top;
+	 *         null if there is no path
+	 */
+	public Stack<OpencrxActivityProcessTransition> getPath(OpencrxActivityProcessState from, OpencrxActivityProcessState to){
+		if (from == null || to == null)
 			return null;
-		}
 
-		Stack<OpencrxActivityProcessTransition> ret = new Stack<OpencrxActivityProcessTransition>();
-		OpencrxActivityProcessState cur = to;
+		int cur = indexOf(from);
+		int target = indexOf(to);
+
+		if (cur == -1 || target == -1)
+			return null;
 
-		while (!cur.equals(from)){
-			OpencrxActivityProcessTransition e = lastEdge.get(cur);
-			ret.push(e);
+		LinkedList<OpencrxActivityProcessTransition> path = new LinkedList<OpencrxActivityProcessTransition>();
 
-			cur = e.getPrevState();
+		while (cur != target){
+			OpencrxActivityProcessTransition e = nextHop[cur][target];
+			if (e == null)
+				return null;
+
+			path.addFirst(e);
+			cur = indexOf(e.getNextState());
 		}
 
-		return ret;
+		Stack<OpencrxActivityProcessTransition> ret = new Stack<OpencrxActivityProcessTransition>();
+		ret.addAll(path);
 
+		return ret;
 	}
 
 	public OpencrxActivityProcessState getStateById(String id){
 		if (id == null)
 			return null;
 
-		for (OpencrxActivityProcessState state : states)
-			if (id.equals(state.getId()))
-				return state;
+		Integer index = stateIndexById.get(id);
 
-		return null;
+		return index == null ? null : stateAt[index];
 	}
 
 	public OpencrxActivityProcessState getStateByName(String name){
 		if (name == null)
 			return null;
 
-		for (OpencrxActivityProcessState state : states)
-			if (name.equals(state.getName()))
-				return state;
-
-		return null;
+		return stateByName.get(name);
 	}
 
    public OpencrxActivityProcessTransition getTransitionByName(String name){
         if (name == null)
             return null;
 
-        for (OpencrxActivityProcessTransition trans : transitions)
-            if (name.equals(trans.getName()))
-                return trans;
-
-        return null;
+        return transitionByName.get(name);
     }
 
    public OpencrxActivityProcessTransition getTransitionByStates(String prevStateId, String nextStateId){
        if (prevStateId == null || nextStateId == null)
            return null;
 
-       for (OpencrxActivityProcessTransition trans : transitions){
-           if (isTransitionCorrupted(trans))
-               continue;
-           if (prevStateId.equals(trans.getPrevState().getId()) && nextStateId.equals(trans.getNextState().getId()))
-               return trans;
-       }
+       Integer prev = stateIndexById.get(prevStateId);
+       Integer next = stateIndexById.get(nextStateId);
+
+       if (prev == null || next == null)
+           return null;
 
-       return null;
+       return edge[prev][next];
    }
 
+	private int indexOf(OpencrxActivityProcessState state){
+		Integer index = state.getId() == null ? null : stateIndexById.get(state.getId());
+		return index == null ? -1 : index;
+	}
+
 	private boolean isTransitionCorrupted(OpencrxActivityProcessTransition trans){
 		return trans == null || trans.getPrevState() == null || trans.getNextState() == null || trans.getId() == null;
 	}
@@ -46,6 +46,9 @@ public class OpencrxContact implements Comparable<OpencrxContact> {
 
     private final String crxId;
 
+    /** server modification time, millis, 0 if not read */
+    private long modifiedAt;
+
     public OpencrxContact(long id, String email, String firstname,
             String lastname) {
         this.id = id;
@@ -77,6 +80,14 @@ public class OpencrxContact implements Comparable<OpencrxContact> {
                 userData.getValue(CRX_ID) );
     }
 
+    public long getModifiedAt() {
+        return modifiedAt;
+    }
+
+    public void setModifiedAt(long modifiedAt) {
+        this.modifiedAt = modifiedAt;
+    }
+
     /**
      * @return the email
      */
@@ -4,6 +4,7 @@
 package ru.otdelit.astrid.opencrx.sync;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -11,13 +12,19 @@ import org.json.JSONObject;
 
 import ru.otdelit.astrid.opencrx.OpencrxUtilities;
 import ru.otdelit.astrid.opencrx.api.ApiUtilities;
+import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.text.TextUtils;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
 import android.text.format.Time;
+import android.util.Log;
 
 import com.todoroo.andlib.data.Property;
 import com.todoroo.andlib.data.TodorooCursor;
+import com.todoroo.andlib.data.Property.LongProperty;
 import com.todoroo.andlib.data.Property.StringProperty;
 import com.todoroo.andlib.service.ContextManager;
 import com.todoroo.andlib.sql.Criterion;
@@ -95,27 +102,73 @@ public final class OpencrxDataService extends
 		storeObjectDao.deleteWhere(StoreObject.TYPE
 				.eq(OpencrxActivityCreator.TYPE));
 		storeObjectDao.deleteWhere(StoreObject.TYPE.eq(OpencrxContact.TYPE));
+		storeObjectDao.deleteWhere(StoreObject.TYPE
+				.eq(OpencrxActivityProcessGraph.TYPE));
+
+		creatorIndex = OpencrxNameIndex.EMPTY;
+		contactIndex = OpencrxNameIndex.EMPTY;
 	}
 
 	public TodorooCursor<Task> getSyncedTasks(Property<?>[] properties) {
-		TodorooCursor<Task> tasks = taskDao.query(Query.select(Task.ID)
+		return taskDao.query(Query
+				.select(properties)
+				.where(Task.ID.in(Query
+						.select(Metadata.TASK)
+						.from(Metadata.TABLE)
+						.where(Criterion.and(
+								MetadataCriteria.withKey(getMetadataKey()),
+								OpencrxActivity.ID.gt(1)))))
 				.orderBy(Order.asc(Task.ID)));
-
-		return joinWithOpencrxMetadata(tasks, true, properties);
 	}
 
 	private void readCreators() {
-		if (creators == null) {
+		if (creators == null)
 			creators = readStoreObjects(OpencrxActivityCreator.TYPE);
-			creatorExists = new boolean[creators.length];
-		}
 	}
 
 	private void readContacts() {
-		if (contacts == null) {
+		if (contacts == null)
 			contacts = readStoreObjects(OpencrxContact.TYPE);
-			contactExists = new boolean[contacts.length];
+	}
+
+	/**
+	 * Reads activity process graph saved on previous sync
+	 * 
+	 * @return graph or null if it was not saved
+	 */
+	public OpencrxActivityProcessGraph readActivityProcessGraph() {
+		StoreObject[] graphs = readStoreObjects(OpencrxActivityProcessGraph.TYPE);
+
+		if (graphs.length == 0)
+			return null;
+
+		try {
+			return new OpencrxActivityProcessGraph(graphs[0]);
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Saves activity process graph instead of previous one
+	 */
+	public void saveActivityProcessGraph(OpencrxActivityProcessGraph graph) {
+		StoreObject local = new StoreObject();
+
+		local.setValue(StoreObject.TYPE, OpencrxActivityProcessGraph.TYPE);
+		local.setValue(OpencrxActivityProcessGraph.PROCESS_ID,
+				graph.getProcessId());
+		local.setValue(OpencrxActivityProcessGraph.VERSION, graph.getVersion());
+
+		try {
+			local.setValue(OpencrxActivityProcessGraph.DATA, graph.toJson());
+		} catch (JSONException e) {
+			return;
 		}
+
+		storeObjectDao.deleteWhere(StoreObject.TYPE
+				.eq(OpencrxActivityProcessGraph.TYPE));
+		storeObjectDao.save(local);
 	}
 
 	/**
@@ -180,9 +233,6 @@ public final class OpencrxDataService extends
 	// --- dashboard methods
 
 	private StoreObject[] creators = null;
-	private boolean[] creatorExists = null; // array of flags to determine
-											// whether creator still exists on
-											// remote server
 
 	/**
 	 * @return a list of creators
@@ -193,67 +243,62 @@ public final class OpencrxDataService extends
 	}
 
 	/**
-	 * Reads creators
+	 * Reconciles saved creators with all creators read from server: new ones
+	 * are inserted, changed ones updated, missing ones deleted, all in one
+	 * batch.
 	 * 
 	 * @throws JSONException
 	 */
 	@SuppressWarnings("nls")
 	public void updateCreators(JSONArray changedCreators) throws JSONException {
-		readCreators();
+		HashMap<Long, StoreObject> locals = indexByRemoteId(
+				readStoreObjects(OpencrxActivityCreator.TYPE),
+				OpencrxActivityCreator.REMOTE_ID);
+
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 
 		for (int i = 0; i < changedCreators.length(); i++) {
 			JSONObject remote = changedCreators.getJSONObject(i).getJSONObject(
 					"dashboard");
-			updateCreator(remote, false);
-		}
 
-		// check if there are dashboards which does not exist on remote server
-		for (int i = 0; i < creators.length; ++i) {
-			if (!creatorExists[i])
-				storeObjectDao.delete(creators[i].getId());
-		}
+			long id = remote.getLong("id_dashboard");
+			String name = ApiUtilities.decode(remote.getString("title"));
+			String crxId = remote.getString("crx_id");
 
-		// clear dashboard cache
-		creators = null;
-		creatorExists = null;
-	}
+			StoreObject local = locals.remove(id);
 
-	@SuppressWarnings("nls")
-	public StoreObject updateCreator(JSONObject remote, boolean reinitCache)
-			throws JSONException {
-		if (reinitCache)
-			readCreators();
-		long id = remote.getLong("id_dashboard");
-		StoreObject local = null;
-		for (int i = 0; i < creators.length; ++i) {
-			if (creators[i].getValue(OpencrxActivityCreator.REMOTE_ID).equals(
-					id)) {
-				local = creators[i];
-				creatorExists[i] = true;
-				break;
+			StoreObject values = new StoreObject();
+			if (local == null) {
+				values.setValue(StoreObject.TYPE, OpencrxActivityCreator.TYPE);
+				values.setValue(OpencrxActivityCreator.REMOTE_ID, id);
 			}
+			if (local == null
+					|| !equal(local.getValue(OpencrxActivityCreator.NAME), name))
+				values.setValue(OpencrxActivityCreator.NAME, name);
+			if (local == null
+					|| !equal(local.getValue(OpencrxActivityCreator.CRX_ID),
+							crxId))
+				values.setValue(OpencrxActivityCreator.CRX_ID, crxId);
+
+			addSaveOperation(operations, local, values);
 		}
 
-		if (local == null)
-			local = new StoreObject();
+		// dashboards which does not exist on remote server
+		for (StoreObject local : locals.values())
+			operations.add(ContentProviderOperation.newDelete(
+					uriWithId(local.getId())).build());
 
-		local.setValue(StoreObject.TYPE, OpencrxActivityCreator.TYPE);
-		local.setValue(OpencrxActivityCreator.REMOTE_ID, id);
-		local.setValue(OpencrxActivityCreator.NAME,
-				ApiUtilities.decode(remote.getString("title")));
-		local.setValue(OpencrxActivityCreator.CRX_ID,
-				remote.getString("crx_id"));
+		applyStoreObjectOperations(operations);
 
-		storeObjectDao.save(local);
-		if (reinitCache)
-			creators = null;
-		return local;
+		// clear dashboard cache
+		creators = null;
+
+		rebuildCreatorIndex();
 	}
 
 	// user methods
 
 	private StoreObject[] contacts = null;
-	private boolean[] contactExists = null;
 
 	/**
 	 * @return a list of users
@@ -264,153 +309,173 @@ public final class OpencrxDataService extends
 	}
 
 	/**
-	 * Reads users
+	 * Reconciles saved users with all users read from server, see
+	 * {@link #updateCreators(JSONArray)}
 	 */
 	public void updateContacts(OpencrxContact[] remoteUsers) {
-		readContacts();
+		HashMap<Long, StoreObject> locals = indexByRemoteId(
+				readStoreObjects(OpencrxContact.TYPE), OpencrxContact.REMOTE_ID);
 
-		for (int i = 0; i < remoteUsers.length; i++) {
-			OpencrxContact remote = remoteUsers[i];
-			updateContact(remote, false);
-		}
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 
-		// check if there are users which does not exist on remote server
-		for (int i = 0; i < contacts.length; ++i) {
-			if (!contactExists[i])
-				storeObjectDao.delete(contacts[i].getId());
+		for (OpencrxContact remote : remoteUsers) {
+			StoreObject local = locals.remove(remote.getId());
+
+			StoreObject values = new StoreObject();
+			if (local == null) {
+				values.setValue(StoreObject.TYPE, OpencrxContact.TYPE);
+				values.setValue(OpencrxContact.REMOTE_ID, remote.getId());
+			}
+			if (local == null
+					|| !equal(local.getValue(OpencrxContact.FIRST_NAME),
+							remote.getFirstname()))
+				values.setValue(OpencrxContact.FIRST_NAME,
+						remote.getFirstname());
+			if (local == null
+					|| !equal(local.getValue(OpencrxContact.LAST_NAME),
+							remote.getLastname()))
+				values.setValue(OpencrxContact.LAST_NAME, remote.getLastname());
+			if (local == null
+					|| !equal(local.getValue(OpencrxContact.CRX_ID),
+							remote.getCrxId()))
+				values.setValue(OpencrxContact.CRX_ID, remote.getCrxId());
+
+			addSaveOperation(operations, local, values);
 		}
 
-		// clear user cache
-		contacts = null;
-		contactExists = null;
-	}
+		// users which does not exist on remote server
+		for (StoreObject local : locals.values())
+			operations.add(ContentProviderOperation.newDelete(
+					uriWithId(local.getId())).build());
 
-	public StoreObject updateContact(OpencrxContact remote, boolean reinitCache) {
-		if (reinitCache)
-			readContacts();
+		applyStoreObjectOperations(operations);
 
-		long id = remote.getId();
+		// clear user cache
+		contacts = null;
 
-		StoreObject local = null;
+		rebuildContactIndex();
+	}
 
-		for (int i = 0; i < contacts.length; ++i) {
-			if (contacts[i].getValue(OpencrxContact.REMOTE_ID).equals(id)) {
-				local = contacts[i];
-				contactExists[i] = true;
-				break;
-			}
+	/**
+	 * @return store objects by remote id, duplicates are left out, so they are
+	 *         deleted on reconciliation
+	 */
+	private static HashMap<Long, StoreObject> indexByRemoteId(
+			StoreObject[] objects, LongProperty remoteId) {
+		HashMap<Long, StoreObject> ret = new HashMap<Long, StoreObject>(
+				objects.length * 2);
+		for (StoreObject object : objects) {
+			Long id = object.getValue(remoteId);
+			if (!ret.containsKey(id))
+				ret.put(id, object);
 		}
+		return ret;
+	}
 
+	/**
+	 * Adds insert of new store object or update of changed values, nothing if
+	 * values are unchanged
+	 */
+	private static void addSaveOperation(
+			ArrayList<ContentProviderOperation> operations, StoreObject local,
+			StoreObject values) {
 		if (local == null)
-			local = new StoreObject();
-
-		local.setValue(StoreObject.TYPE, OpencrxContact.TYPE);
-		local.setValue(OpencrxContact.REMOTE_ID, id);
-		local.setValue(OpencrxContact.FIRST_NAME, remote.getFirstname());
-		local.setValue(OpencrxContact.LAST_NAME, remote.getLastname());
-		local.setValue(OpencrxContact.CRX_ID, remote.getCrxId());
-
-		storeObjectDao.save(local);
+			operations.add(ContentProviderOperation
+					.newInsert(StoreObject.CONTENT_URI)
+					.withValues(values.getMergedValues()).build());
+		else if (values.getSetValues() != null
+				&& values.getSetValues().size() > 0)
+			operations.add(ContentProviderOperation
+					.newUpdate(uriWithId(local.getId()))
+					.withValues(values.getSetValues()).build());
+	}
 
-		if (reinitCache) {
-			contacts = null;
-			contactExists = null;
-		}
+	private static Uri uriWithId(long id) {
+		return Uri.withAppendedPath(StoreObject.CONTENT_URI, Long.toString(id));
+	}
 
-		return local;
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
 	}
 
-	public String getCreatorCrxId(long idCreator) {
-		TodorooCursor<StoreObject> res = storeObjectDao.query(Query.select(
-				OpencrxActivityCreator.CRX_ID).where(
-				Criterion.and(StoreObject.TYPE.eq(OpencrxActivityCreator.TYPE),
-						OpencrxActivityCreator.REMOTE_ID.eq(idCreator))));
+	/**
+	 * Applies operations in one batch, provider may run it in one transaction
+	 */
+	private void applyStoreObjectOperations(
+			ArrayList<ContentProviderOperation> operations) {
+		if (operations.isEmpty())
+			return;
 
 		try {
-			if (res.getCount() > 0) {
-				res.moveToFirst();
-				String id = res.get(OpencrxActivityCreator.CRX_ID);
-				return id;
-			} else {
-				return null;
-			}
-		} finally {
-			res.close();
+			context.getContentResolver().applyBatch(
+					StoreObject.CONTENT_URI.getAuthority(), operations);
+		} catch (RemoteException e) {
+			Log.e(OpencrxUtils.TAG, "Store objects were not saved", e); //$NON-NLS-1$
+		} catch (OperationApplicationException e) {
+			Log.e(OpencrxUtils.TAG, "Store objects were not saved", e); //$NON-NLS-1$
 		}
-
 	}
 
-	public String getContactCrxId(long idUser) {
-		TodorooCursor<StoreObject> res = storeObjectDao.query(Query.select(
-				OpencrxContact.CRX_ID).where(
-				Criterion.and(StoreObject.TYPE.eq(OpencrxContact.TYPE),
-						OpencrxContact.REMOTE_ID.eq(idUser))));
+	// lookups by remote id, served from memory
 
-		try {
-			if (res.getCount() > 0) {
-				res.moveToFirst();
-				String id = res.get(OpencrxContact.CRX_ID);
-				return id;
-			} else {
-				return null;
-			}
-		} finally {
-			res.close();
-		}
+	/** creators and contacts by remote id, replaced after every change */
+	private volatile OpencrxNameIndex creatorIndex = null;
+	private volatile OpencrxNameIndex contactIndex = null;
+
+	private OpencrxNameIndex getCreatorIndex() {
+		OpencrxNameIndex index = creatorIndex;
+		if (index != null)
+			return index;
 
+		synchronized (this) {
+			return creatorIndex != null ? creatorIndex : rebuildCreatorIndex();
+		}
 	}
 
-	@SuppressWarnings("nls")
-	public String getUserName(long idUser) {
-		TodorooCursor<StoreObject> res = storeObjectDao.query(Query.select(
-				OpencrxContact.LAST_NAME, OpencrxContact.FIRST_NAME).where(
-				Criterion.and(StoreObject.TYPE.eq(OpencrxContact.TYPE),
-						OpencrxContact.REMOTE_ID.eq(idUser))));
+	private OpencrxNameIndex getContactIndex() {
+		OpencrxNameIndex index = contactIndex;
+		if (index != null)
+			return index;
 
-		try {
-			if (res.getCount() > 0) {
-				res.moveToFirst();
-				String firstName = res.get(OpencrxContact.FIRST_NAME);
-				String lastName = res.get(OpencrxContact.LAST_NAME);
-
-				boolean hasFirstName = !TextUtils.isEmpty(firstName);
-				boolean hasLastName = !TextUtils.isEmpty(lastName);
-
-				return TextUtils.concat(hasFirstName ? firstName : "",
-						hasFirstName && hasLastName ? " " : "",
-						hasLastName ? lastName : "").toString();
-			} else {
-				return null;
-			}
-		} finally {
-			res.close();
+		synchronized (this) {
+			return contactIndex != null ? contactIndex : rebuildContactIndex();
 		}
+	}
 
+	// rebuilds are serialized, so index read before change can not replace
+	// the one read after it
+	private synchronized OpencrxNameIndex rebuildCreatorIndex() {
+		OpencrxNameIndex index = OpencrxNameIndex
+				.ofCreators(readStoreObjects(OpencrxActivityCreator.TYPE));
+		creatorIndex = index;
+		return index;
 	}
 
-	@SuppressWarnings("nls")
-	public String getCreatorName(long idCreator) {
-		TodorooCursor<StoreObject> res = storeObjectDao.query(Query.select(
-				OpencrxActivityCreator.NAME).where(
-				Criterion.and(StoreObject.TYPE.eq(OpencrxActivityCreator.TYPE),
-						OpencrxActivityCreator.REMOTE_ID.eq(idCreator))));
+	private synchronized OpencrxNameIndex rebuildContactIndex() {
+		OpencrxNameIndex index = OpencrxNameIndex
+				.ofContacts(readStoreObjects(OpencrxContact.TYPE));
+		contactIndex = index;
+		return index;
+	}
 
-		try {
-			if (res.getCount() > 0) {
-				res.moveToFirst();
-				String name = res.get(OpencrxActivityCreator.NAME);
+	public String getCreatorCrxId(long idCreator) {
+		return getCreatorIndex().getCrxId(idCreator);
+	}
 
-				return name;
-			} else {
-				return null;
-			}
-		} finally {
-			res.close();
-		}
+	public String getContactCrxId(long idUser) {
+		return getContactIndex().getCrxId(idUser);
+	}
+
+	public String getUserName(long idUser) {
+		return getContactIndex().getName(idUser);
+	}
 
+	public String getCreatorName(long idCreator) {
+		return getCreatorIndex().getName(idCreator);
 	}
 
 	public void deleteTaskAndMetadata(long taskId) {
+		invalidateMetadataReader(taskId);
 		taskDao.delete(taskId);
 		metadataDao.deleteWhere(Metadata.TASK.eq(taskId));
 	}
@@ -449,74 +514,4 @@ public final class OpencrxDataService extends
 		return OpencrxUtilities.INSTANCE;
 	}
 
-	private TodorooCursor<Task> joinWithOpencrxMetadata(
-			TodorooCursor<Task> tasks, boolean both, Property<?>... properties) {
-		try {
-			TodorooCursor<Metadata> metadata = getRemoteTaskOpencrxMetadata();
-			try {
-				ArrayList<Long> matchingRows = new ArrayList<Long>();
-				joinRowsOpencrx(tasks, metadata, matchingRows, both);
-
-				return taskDao.query(Query.select(properties).where(
-						Task.ID.in(matchingRows.toArray(new Long[matchingRows
-								.size()]))));
-			} finally {
-				metadata.close();
-			}
-		} finally {
-			tasks.close();
-		}
-	}
-
-	/**
-	 * Gets cursor across all task metadata for joining
-	 * 
-	 * @return cursor
-	 */
-	private TodorooCursor<Metadata> getRemoteTaskOpencrxMetadata() {
-		return metadataDao.query(Query
-				.select(Metadata.TASK)
-				.where(Criterion.and(
-						MetadataCriteria.withKey(getMetadataKey()),
-						OpencrxActivity.ID.gt(1)))
-				.orderBy(Order.asc(Metadata.TASK)));
-	}
-
-	/**
-	 * Join rows from two cursors on the first column, assuming its an id column
-	 * 
-	 * @param left
-	 * @param right
-	 * @param matchingRows
-	 * @param both
-	 *            - if false, returns left join, if true, returns both join
-	 */
-	private static void joinRowsOpencrx(TodorooCursor<?> left,
-			TodorooCursor<?> right, ArrayList<Long> matchingRows, boolean both) {
-
-		left.moveToPosition(-1);
-		right.moveToFirst();
-
-		while (true) {
-			left.moveToNext();
-			if (left.isAfterLast())
-				break;
-			long leftValue = left.getLong(0);
-
-			// advance right until it is equal or bigger
-			while (!right.isAfterLast() && right.getLong(0) < leftValue) {
-				right.moveToNext();
-			}
-
-			if (right.isAfterLast()) {
-				if (!both)
-					matchingRows.add(leftValue);
-				continue;
-			}
-
-			if ((right.getLong(0) == leftValue) == both)
-				matchingRows.add(leftValue);
-		}
-	}
-
 }
@@ -0,0 +1,128 @@
+package ru.otdelit.astrid.opencrx.sync;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.text.TextUtils;
+
+import com.todoroo.astrid.data.StoreObject;
+
+/**
+ * Immutable lookup of creators or contacts by remote id. Keeps remote ids,
+ * CRX ids and display names in parallel arrays sorted by remote id and
+ * searches them with {@link Arrays#binarySearch(long[], long)}, so lookups
+ * need neither database nor boxing. Replaced as a whole when store objects
+ * change.
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ */
+final class OpencrxNameIndex {
+
+	public static final OpencrxNameIndex EMPTY = new OpencrxNameIndex(
+			new long[0], new String[0], new String[0]);
+
+	private final long[] ids;
+	private final String[] crxIds;
+	private final String[] names;
+
+	private OpencrxNameIndex(long[] ids, String[] crxIds, String[] names) {
+		this.ids = ids;
+		this.crxIds = crxIds;
+		this.names = names;
+	}
+
+	public static OpencrxNameIndex ofCreators(StoreObject[] creators) {
+		int n = creators.length;
+		long[] ids = new long[n];
+		String[] crxIds = new String[n];
+		String[] names = new String[n];
+
+		for (int i = 0; i < n; i++) {
+			ids[i] = creators[i].getValue(OpencrxActivityCreator.REMOTE_ID);
+			crxIds[i] = creators[i].getValue(OpencrxActivityCreator.CRX_ID);
+			names[i] = creators[i].getValue(OpencrxActivityCreator.NAME);
+		}
+
+		return sorted(ids, crxIds, names);
+	}
+
+	@SuppressWarnings("nls")
+	public static OpencrxNameIndex ofContacts(StoreObject[] contacts) {
+		int n = contacts.length;
+		long[] ids = new long[n];
+		String[] crxIds = new String[n];
+		String[] names = new String[n];
+
+		for (int i = 0; i < n; i++) {
+			ids[i] = contacts[i].getValue(OpencrxContact.REMOTE_ID);
+			crxIds[i] = contacts[i].getValue(OpencrxContact.CRX_ID);
+
+			String firstName = contacts[i].getValue(OpencrxContact.FIRST_NAME);
+			String lastName = contacts[i].getValue(OpencrxContact.LAST_NAME);
+
+			boolean hasFirstName = !TextUtils.isEmpty(firstName);
+			boolean hasLastName = !TextUtils.isEmpty(lastName);
+
+			names[i] = TextUtils.concat(hasFirstName ? firstName : "",
+					hasFirstName && hasLastName ? " " : "",
+					hasLastName ? lastName : "").toString();
+		}
+
+		return sorted(ids, crxIds, names);
+	}
+
+	/** sorts entries by id, first of entries with equal ids wins */
+	private static OpencrxNameIndex sorted(final long[] ids, String[] crxIds,
+			String[] names) {
+		Integer[] order = new Integer[ids.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+
+		// stable, so equal ids keep order of store objects
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long x = ids[a], y = ids[b];
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+
+		int n = 0;
+		long[] sortedIds = new long[order.length];
+		String[] sortedCrxIds = new String[order.length];
+		String[] sortedNames = new String[order.length];
+
+		for (Integer i : order) {
+			if (n > 0 && sortedIds[n - 1] == ids[i])
+				continue;
+			sortedIds[n] = ids[i];
+			sortedCrxIds[n] = crxIds[i];
+			sortedNames[n] = names[i];
+			n++;
+		}
+
+		if (n < order.length) {
+			long[] uniqueIds = new long[n];
+			String[] uniqueCrxIds = new String[n];
+			String[] uniqueNames = new String[n];
+			System.arraycopy(sortedIds, 0, uniqueIds, 0, n);
+			System.arraycopy(sortedCrxIds, 0, uniqueCrxIds, 0, n);
+			System.arraycopy(sortedNames, 0, uniqueNames, 0, n);
+			return new OpencrxNameIndex(uniqueIds, uniqueCrxIds, uniqueNames);
+		}
+
+		return new OpencrxNameIndex(sortedIds, sortedCrxIds, sortedNames);
+	}
+
+	/** @return CRX id or null if there is no such entry */
+	public String getCrxId(long id) {
+		int i = Arrays.binarySearch(ids, id);
+		return i < 0 ? null : crxIds[i];
+	}
+
+	/** @return display name or null if there is no such entry */
+	public String getName(long id) {
+		int i = Arrays.binarySearch(ids, id);
+		return i < 0 ? null : names[i];
+	}
+
+}
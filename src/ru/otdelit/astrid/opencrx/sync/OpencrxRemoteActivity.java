@@ -0,0 +1,137 @@
+package ru.otdelit.astrid.opencrx.sync;
+
+/**
+ * Activity as read from OpenCRX. Timestamps are millis, 0 if not set.
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ */
+public class OpencrxRemoteActivity {
+
+	private String crxId;
+	private long id;
+
+	private String title = ""; //$NON-NLS-1$
+	private String description = ""; //$NON-NLS-1$
+
+	private long createdAt;
+	private long modifiedAt;
+	private long dueBy;
+	private long scheduledStart;
+
+	private int priority;
+
+	private boolean complete;
+	private boolean deleted;
+	private boolean closed;
+
+	private long creatorId;
+	private long contactId;
+
+	private String processId;
+	private String processStateId;
+
+	/** @return String ID in OpenCRX system */
+	public String getCrxId() {
+		return crxId;
+	}
+	public void setCrxId(String crxId) {
+		this.crxId = crxId;
+	}
+	/** @return hash of CRX id */
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
+	public String getTitle() {
+		return title;
+	}
+	public void setTitle(String title) {
+		this.title = title;
+	}
+	public String getDescription() {
+		return description;
+	}
+	public void setDescription(String description) {
+		this.description = description;
+	}
+	public long getCreatedAt() {
+		return createdAt;
+	}
+	public void setCreatedAt(long createdAt) {
+		this.createdAt = createdAt;
+	}
+	public long getModifiedAt() {
+		return modifiedAt;
+	}
+	public void setModifiedAt(long modifiedAt) {
+		this.modifiedAt = modifiedAt;
+	}
+	public long getDueBy() {
+		return dueBy;
+	}
+	public void setDueBy(long dueBy) {
+		this.dueBy = dueBy;
+	}
+	public long getScheduledStart() {
+		return scheduledStart;
+	}
+	public void setScheduledStart(long scheduledStart) {
+		this.scheduledStart = scheduledStart;
+	}
+	public int getPriority() {
+		return priority;
+	}
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+	/** @return true if activity is in Complete state of process */
+	public boolean isComplete() {
+		return complete;
+	}
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+	/** @return true if activity is in Closed state of process */
+	public boolean isDeleted() {
+		return deleted;
+	}
+	public void setDeleted(boolean deleted) {
+		this.deleted = deleted;
+	}
+	/** @return true if activityState of activity is closed */
+	public boolean isClosed() {
+		return closed;
+	}
+	public void setClosed(boolean closed) {
+		this.closed = closed;
+	}
+	/** @return hash of last applied creator id */
+	public long getCreatorId() {
+		return creatorId;
+	}
+	public void setCreatorId(long creatorId) {
+		this.creatorId = creatorId;
+	}
+	/** @return hash of assigned contact id */
+	public long getContactId() {
+		return contactId;
+	}
+	public void setContactId(long contactId) {
+		this.contactId = contactId;
+	}
+	public String getProcessId() {
+		return processId;
+	}
+	public void setProcessId(String processId) {
+		this.processId = processId;
+	}
+	public String getProcessStateId() {
+		return processStateId;
+	}
+	public void setProcessStateId(String processStateId) {
+		this.processStateId = processStateId;
+	}
+
+}
@@ -7,7 +7,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -22,6 +25,7 @@ import ru.otdelit.astrid.opencrx.api.ApiResponseParseException;
 import ru.otdelit.astrid.opencrx.api.ApiServiceException;
 import ru.otdelit.astrid.opencrx.api.ApiUtilities;
 import ru.otdelit.astrid.opencrx.api.OpencrxInvoker;
+import ru.otdelit.astrid.opencrx.api.OpencrxRestClient;
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
 import android.app.Activity;
@@ -43,6 +47,7 @@ import com.todoroo.andlib.utility.DialogUtilities;
 import com.todoroo.andlib.utility.Preferences;
 import com.todoroo.astrid.api.AstridApiConstants;
 import com.todoroo.astrid.data.Metadata;
+import com.todoroo.astrid.data.StoreObject;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.data.Update;
 import com.todoroo.astrid.sync.SyncContainer;
@@ -59,6 +64,20 @@ import com.todoroo.astrid.sync.SyncProviderUtilities;
 public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 
 	private static final long TASK_ID_UNSYNCED = 1L;
+
+	/**
+	 * interval between syncs reading all open activities. Syncs in between
+	 * read only activities modified since last sync, so remotely deleted
+	 * activities are detected by full sync only.
+	 */
+	private static final long FULL_SYNC_INTERVAL = DateUtilities.ONE_DAY;
+
+	/** number of activities whose resources and work time are read at once */
+	private static final int ENRICH_BATCH_SIZE = 200;
+
+	/** number of activities missing in open list which are read at once */
+	private static final int MISSING_BATCH_SIZE = 50;
+
 	private OpencrxDataService dataService = null;
 	private OpencrxInvoker invoker = null;
 	private final OpencrxUtilities preferences = OpencrxUtilities.INSTANCE;
@@ -71,6 +90,11 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 	private Time lastSync;
 	private OpencrxActivityProcessGraph graph;
 
+	/** positions of remote tasks by activity id, see {@link #matchTask} */
+	private HashMap<Long, Integer> remoteIndex;
+	private ArrayList<OpencrxTaskContainer> indexedTasks;
+	private int indexedSize;
+
 	public OpencrxSyncProvider() {
 		super();
 	}
@@ -87,6 +111,10 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		Preferences.setString(R.string.opencrx_PPr_login, null);
 		Preferences.setString(R.string.opencrx_PPr_password, null);
 		Preferences.setString(OpencrxUtilities.PREF_SERVER_LAST_SYNC, null);
+		Preferences.setLong(OpencrxUtilities.PREF_SERVER_LAST_MODIFIED, 0);
+		Preferences.setLong(
+				OpencrxUtilities.PREF_SERVER_LAST_CONTACT_MODIFIED, 0);
+		Preferences.setLong(OpencrxUtilities.PREF_SERVER_LAST_FULL_SYNC, 0);
 		Preferences.setStringFromInteger(
 				R.string.opencrx_PPr_defaultcreator_key,
 				(int) OpencrxUtilities.CREATOR_NO_SYNC);
@@ -94,6 +122,8 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 
 		dataService = OpencrxDataService.getInstance();
 		dataService.clearMetadata();
+
+		OpencrxRestClient.shutdown();
 	}
 
 	/**
@@ -181,6 +211,10 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		} catch (Exception e) {
 			handleException("pdv-authenticate", e, true);
 		} finally {
+			if (invoker != null)
+				invoker.shutdown();
+			remoteIndex = null;
+			indexedTasks = null;
 			preferences.stopOngoing();
 		}
 	}
@@ -244,44 +278,58 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 			String lastActivityId = Preferences
 					.getStringValue(OpencrxUtilities.PREF_SERVER_LAST_ACTIVITY);
 
+			// read all open activities and contacts from time to time,
+			// otherwise only those modified after last sync
+			long lastModified = Preferences.getLong(
+					OpencrxUtilities.PREF_SERVER_LAST_MODIFIED, 0);
+			long lastFullSync = Preferences.getLong(
+					OpencrxUtilities.PREF_SERVER_LAST_FULL_SYNC, 0);
+			boolean fullSync = lastModified == 0
+					|| DateUtilities.now() - lastFullSync > FULL_SYNC_INTERVAL;
+
 			// read dashboards
 			updateCreators();
 
 			// read contacts
-			updateContacts();
+			updateContacts(fullSync);
 
 			// read labels
 			updateResources(userCrxId);
 
-			// read activity process graph
-			graph = invoker.getActivityProcessGraph();
+			// read activity process graph if it was changed
+			OpencrxActivityProcessGraph savedGraph = dataService
+					.readActivityProcessGraph();
+			graph = invoker.getActivityProcessGraph(savedGraph);
+			if (graph != savedGraph)
+				dataService.saveActivityProcessGraph(graph);
 
-			ArrayList<OpencrxTaskContainer> remoteTasks = new ArrayList<OpencrxTaskContainer>();
-			JSONArray tasks = invoker.tasksShowListOpencrx(graph);
+			// remember local changes before remote ones are written
+			dataService.markLocallyUpdated();
+			HashSet<String> locallyCreatedTitles = getLocallyCreatedTitles();
 
-			for (int i = 0; i < tasks.length(); i++) {
+			// remote tasks are matched and written page by page, only those
+			// changed locally are kept for synchronization below
+			RemoteTaskReader reader = new RemoteTaskReader(lastModified,
+					locallyCreatedTitles);
 
-				JSONObject task = tasks.getJSONObject(i);
-				OpencrxTaskContainer remote = parseRemoteTask(task);
+			if (fullSync)
+				invoker.tasksShowListOpencrx(graph, reader);
+			else
+				invoker.tasksShowListOpencrx(graph, lastModified, reader);
 
-				// update reminder flags for incoming remote tasks to prevent
-				// annoying
-				if (remote.task.hasDueDate()
-						&& remote.task.getValue(Task.DUE_DATE) < DateUtilities
-								.now())
-					remote.task.setFlag(Task.REMINDER_FLAGS,
-							Task.NOTIFY_AFTER_DEADLINE, false);
+			ArrayList<OpencrxTaskContainer> remoteTasks = reader.remoteTasks;
 
-				dataService.findLocalMatch(remote);
-
-				remoteTasks.add(remote);
-
-			}
+			dataService.flushTaskAndMetadata();
 
 			// TODO: delete
 			Log.i(OpencrxUtils.TAG, "Matching local to remote...");
 
-			matchLocalTasksToRemote(remoteTasks);
+			matchLocalTasksToRemote(reader.remoteModified, reader.closedTasks,
+					fullSync, lastModified);
+
+			indexRemoteTasks(remoteTasks);
+
+			lastModified = reader.lastModified;
 
 			// TODO: delete
 			Log.i(OpencrxUtils.TAG, "Matching local to remote finished");
@@ -289,10 +337,12 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 			// TODO: delete
 			Log.i(OpencrxUtils.TAG, "Synchronizing tasks...");
 
-			SyncData<OpencrxTaskContainer> syncData = populateSyncData(remoteTasks);
+			SyncData<OpencrxTaskContainer> syncData = populateSyncData(
+					remoteTasks);
 			try {
 				synchronizeTasks(syncData);
 			} finally {
+				dataService.flushTaskAndMetadata();
 				syncData.localCreated.close();
 				syncData.localUpdated.close();
 			}
@@ -303,6 +353,12 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 			cur.setToNow();
 			Preferences.setString(OpencrxUtilities.PREF_SERVER_LAST_SYNC,
 					cur.format2445());
+			Preferences.setLong(OpencrxUtilities.PREF_SERVER_LAST_MODIFIED,
+					lastModified);
+			if (fullSync)
+				Preferences.setLong(
+						OpencrxUtilities.PREF_SERVER_LAST_FULL_SYNC,
+						cur.toMillis(false));
 
 			preferences.recordSuccessfulSync();
 
@@ -328,9 +384,142 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 			// occurs when application was closed
 		} catch (Exception e) {
 			handleException("opencrx-sync", e, true); //$NON-NLS-1$
+		} finally {
+			// tasks saved in batch must be written before sync ends,
+			// metadata read ahead is released, marks are not needed
+			try {
+				dataService.flushTaskAndMetadata();
+				dataService.closeMetadataReader();
+				dataService.clearLocallyUpdatedMarks();
+			} catch (IllegalStateException e) {
+				// occurs when application was closed
+			}
 		}
 	}
 
+	/**
+	 * Reads pages of remote tasks: enriches them, matches them with local
+	 * tasks and writes those not changed locally, so only one page is kept in
+	 * memory.
+	 */
+	private class RemoteTaskReader implements
+			OpencrxInvoker.ActivityPageHandler {
+
+		/** remote tasks changed locally too, synchronized later */
+		private final ArrayList<OpencrxTaskContainer> remoteTasks = new ArrayList<OpencrxTaskContainer>();
+
+		/** modification time of open remote tasks by CRX id */
+		private final HashMap<String, Long> remoteModified = new HashMap<String, Long>();
+
+		/** closed remote tasks by CRX id, read in delta mode */
+		private final HashMap<String, OpencrxTaskContainer> closedTasks = new HashMap<String, OpencrxTaskContainer>();
+
+		private final HashSet<String> locallyCreatedTitles;
+
+		/** max modification time of remote tasks */
+		private long lastModified;
+
+		public RemoteTaskReader(long lastModified,
+				HashSet<String> locallyCreatedTitles) {
+			this.lastModified = lastModified;
+			this.locallyCreatedTitles = locallyCreatedTitles;
+		}
+
+		public void handlePage(List<OpencrxRemoteActivity> tasks)
+				throws IOException {
+			try {
+				ArrayList<OpencrxRemoteActivity> openTasks = new ArrayList<OpencrxRemoteActivity>();
+
+				for (OpencrxRemoteActivity task : tasks) {
+
+					// server time, so watermark does not depend on device
+					// clock
+					lastModified = Math.max(lastModified, task.getModifiedAt());
+
+					// closed activities come in delta only, they are handled
+					// like activities missing in full list
+					if (task.isClosed()) {
+						closedTasks.put(task.getCrxId(),
+								parseRemoteTask(task, new JSONArray(), 0));
+						continue;
+					}
+
+					openTasks.add(task);
+				}
+
+				// local matches must see metadata of previous pages
+				dataService.flushTaskAndMetadata();
+
+				ArrayList<OpencrxTaskContainer> remotes = parseRemoteTasks(openTasks);
+				ArrayList<Long> matched = new ArrayList<Long>(remotes.size());
+
+				for (OpencrxTaskContainer remote : remotes) {
+
+					// update reminder flags for incoming remote tasks to
+					// prevent annoying
+					if (remote.task.hasDueDate()
+							&& remote.task.getValue(Task.DUE_DATE) < DateUtilities
+									.now())
+						remote.task.setFlag(Task.REMINDER_FLAGS,
+								Task.NOTIFY_AFTER_DEADLINE, false);
+
+					dataService.findLocalMatch(remote);
+
+					remoteModified.put(
+							remote.pdvTask.getValue(OpencrxActivity.CRX_ID),
+							remote.task.getValue(Task.MODIFICATION_DATE));
+
+					if (remote.task.getId() != Task.NO_ID)
+						matched.add(remote.task.getId());
+				}
+
+				HashSet<Long> locallyUpdated = dataService
+						.getMarkedLocallyUpdated(matched);
+
+				for (OpencrxTaskContainer remote : remotes) {
+					// new remote task may be merged with local one by title
+					if (locallyUpdated.contains(remote.task.getId())
+							|| (remote.task.getId() == Task.NO_ID && locallyCreatedTitles
+									.contains(remote.task.getValue(Task.TITLE))))
+						remoteTasks.add(remote);
+					else
+						writeRemoteTask(remote);
+				}
+			} catch (JSONException e) {
+				throw new ApiResponseParseException(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes remote task not changed locally, like sync provider does
+	 */
+	private void writeRemoteTask(OpencrxTaskContainer remote) {
+		// don't synchronize new & deleted tasks
+		if (remote.task.getId() == Task.NO_ID && remote.task.isDeleted())
+			return;
+
+		try {
+			write(remote);
+		} catch (Exception e) {
+			handleException("sync-remote-updated", e, false); //$NON-NLS-1$
+		}
+	}
+
+	private HashSet<String> getLocallyCreatedTitles() {
+		HashSet<String> ret = new HashSet<String>();
+
+		TodorooCursor<Task> tasks = dataService.getLocallyCreated(Task.TITLE);
+		try {
+			for (tasks.moveToFirst(); !tasks.isAfterLast(); tasks.moveToNext())
+				ret.add(tasks.get(Task.TITLE));
+		} finally {
+			tasks.close();
+		}
+
+		return ret;
+	}
+
 	private void updateResources(String userCrxId) throws ApiServiceException,
 			IOException, JSONException {
 		JSONArray labels = invoker.resourcesShowList();
@@ -338,9 +527,33 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		Log.i(OpencrxUtils.TAG, "Resources was read.");
 	}
 
-	private void updateContacts() throws ApiServiceException, IOException {
-		OpencrxContact[] contacts = invoker.usersShowListOpencrx();
+	/**
+	 * Reads contacts, only those modified after last read unless full sync.
+	 * Contacts have their own watermark, as they change independently of
+	 * activities.
+	 */
+	private void updateContacts(boolean fullSync) throws ApiServiceException,
+			IOException {
+		long modifiedAfter = fullSync ? 0 : Preferences.getLong(
+				OpencrxUtilities.PREF_SERVER_LAST_CONTACT_MODIFIED, 0);
+
+		HashMap<String, OpencrxContact> known = new HashMap<String, OpencrxContact>();
+		for (StoreObject local : dataService.getContacts()) {
+			OpencrxContact contact = new OpencrxContact(local);
+			if (!TextUtils.isEmpty(contact.getCrxId()))
+				known.put(contact.getCrxId(), contact);
+		}
+
+		OpencrxContact[] contacts = invoker.usersShowListOpencrx(known,
+				modifiedAfter);
 		dataService.updateContacts(contacts);
+
+		// server time, so watermark does not depend on device clock
+		for (OpencrxContact contact : contacts)
+			modifiedAfter = Math.max(modifiedAfter, contact.getModifiedAt());
+		Preferences.setLong(OpencrxUtilities.PREF_SERVER_LAST_CONTACT_MODIFIED,
+				modifiedAfter);
+
 		Log.i(OpencrxUtils.TAG, "Contacts was read.");
 	}
 
@@ -351,11 +564,28 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		Log.i(OpencrxUtils.TAG, "Creators was read.");
 	}
 
-	private void matchLocalTasksToRemote(
-			ArrayList<OpencrxTaskContainer> remoteTasks) throws IOException,
+	/**
+	 * @param remoteModified
+	 *            modification time of open remote tasks by CRX id
+	 * @param closedTasks
+	 *            closed remote tasks by CRX id, read in delta mode
+	 * @param fullSync
+	 *            if false, remote tasks contain only tasks modified since last
+	 *            sync, other tasks are considered unchanged
+	 * @param lastModified
+	 *            server modification time of activities read on last sync
+	 */
+	private void matchLocalTasksToRemote(HashMap<String, Long> remoteModified,
+			HashMap<String, OpencrxTaskContainer> closedTasks,
+			boolean fullSync, long lastModified) throws IOException,
 			JSONException {
 		// try to mark local tasks as deleted if there are no remote tasks
 		// matching
+		ArrayList<OpencrxTaskContainer> missing = new ArrayList<OpencrxTaskContainer>();
+
+		// tasks whose activities may have new notes, by CRX id
+		LinkedHashMap<String, Task> noteTasks = new LinkedHashMap<String, Task>();
+
 		TodorooCursor<Task> locals = dataService.getSyncedTasks(PROPERTIES);
 
 		try {
@@ -370,84 +600,13 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 				String idActivity = local.pdvTask
 						.getValue(OpencrxActivity.CRX_ID);
 				long taskId = local.task.getId();
-				String taskTitle = local.task.getValue(Task.TITLE);
 
-				if (!existRemoteMatch(idActivity, remoteTasks)) {
-					try {
-						OpencrxTaskContainer remote = parseRemoteTask(invoker
-								.tasksViewOpencrx(idActivity, graph));
-
-						if (remote.task.isDeleted()) {
-							// remote task is closed
-							if (local.task.isDeleted()) {
-								// local task is closed too - just delete
-								dataService.deleteTaskAndMetadata(local.task
-										.getId());
-							} else if (local.task.isCompleted()) {
-								// local task is completed - check modification
-								// time
-								if (isTaskChangedAfter(remote, local)) {
-									dataService
-											.deleteTaskAndMetadata(local.task
-													.getId());
-								} else {
-									invoker.taskComplete(idActivity, graph);
-									dataService
-											.deleteTaskAndMetadata(local.task
-													.getId());
-								}
-							} else {
-								// local task is open - check modification time
-								if (isTaskChangedAfter(remote, local)) {
-									dataService
-											.deleteTaskAndMetadata(local.task
-													.getId());
-								} else {
-									if (!invoker.taskOpen(idActivity, graph))
-										dataService
-												.deleteTaskAndMetadata(local.task
-														.getId());
-								}
-							}
-						} else if (remote.task.isCompleted()) {
-							// remote task is completed
-							if (local.task.isDeleted()) {
-								// local task is closed
-								if (isTaskChangedAfter(remote, local)) {
-									dataService
-											.deleteTaskAndMetadata(local.task
-													.getId());
-								} else {
-									invoker.taskClose(idActivity, graph);
-									dataService
-											.deleteTaskAndMetadata(local.task
-													.getId());
-								}
-							} else if (local.task.isCompleted()) {
-								// local task is completed too - just delete
-								dataService.deleteTaskAndMetadata(local.task
-										.getId());
-							} else {
-								// local task is open - check modification time
-								if (isTaskChangedAfter(remote, local)) {
-									dataService
-											.deleteTaskAndMetadata(local.task
-													.getId());
-								} else {
-									if (!invoker.taskOpen(idActivity, graph))
-										dataService
-												.deleteTaskAndMetadata(local.task
-														.getId());
-								}
-							}
-						} else {
-							dataService.deleteTaskAndMetadata(local.task
-									.getId());
-						}
-					} catch (ApiServiceException ex) {
-						// no such task on remote server - delete local
-						dataService.deleteTaskAndMetadata(local.task.getId());
-					}
+				boolean remoteOpen = remoteModified.containsKey(idActivity)
+						|| (!fullSync && !closedTasks.containsKey(idActivity));
+
+				if (!remoteOpen) {
+					// state of missing tasks is resolved below at once
+					missing.add(local);
 				} else {
 					// sync comments local => remote
 					Update[] newComments = dataService.readNewComments(
@@ -460,22 +619,149 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 						invoker.taskAddNote(idActivity, text, graph);
 					}
 
-					// sync comments remote => local
-					List<String> remoteNotes = invoker.getAddNotes(idActivity,
-							graph, OpencrxUtils.formatAsOpencrx(lastSync
-									.toMillis(false)));
-					for (String note : remoteNotes) {
-						Log.i(OpencrxUtils.TAG, String.format(
-								"Synchronizing comment [%s]", note));
-						if (!dataService.storeNewComment(note, taskId,
-								taskTitle))
-							Log.e(OpencrxUtils.TAG, "Couldn't save update.");
-					}
+					// adding note modifies activity, so activities not
+					// modified since last sync have no new notes
+					Long modified = remoteModified.get(idActivity);
+					if (newComments.length > 0
+							|| (modified != null && modified > lastModified))
+						noteTasks.put(idActivity, local.task);
 				}
 			}
 		} finally {
 			locals.close();
 		}
+
+		// sync comments remote => local
+		HashMap<String, List<String>> remoteNotes = invoker.getAddNotes(
+				new ArrayList<String>(noteTasks.keySet()), graph,
+				OpencrxUtils.formatAsOpencrx(lastSync.toMillis(false)));
+
+		for (Map.Entry<String, Task> entry : noteTasks.entrySet()) {
+			Task task = entry.getValue();
+
+			for (String note : remoteNotes.get(entry.getKey())) {
+				Log.i(OpencrxUtils.TAG,
+						String.format("Synchronizing comment [%s]", note));
+				if (!dataService.storeNewComment(note, task.getId(),
+						task.getValue(Task.TITLE)))
+					Log.e(OpencrxUtils.TAG, "Couldn't save update.");
+			}
+		}
+
+		// activities closed since last sync are known from the listing,
+		// others are read by id
+		ArrayList<OpencrxTaskContainer> unresolved = new ArrayList<OpencrxTaskContainer>();
+		for (OpencrxTaskContainer local : missing) {
+			OpencrxTaskContainer remote = closedTasks.get(local.pdvTask
+					.getValue(OpencrxActivity.CRX_ID));
+			if (remote == null)
+				unresolved.add(local);
+			else
+				matchMissingTask(local, remote);
+		}
+
+		for (int from = 0; from < unresolved.size(); from += MISSING_BATCH_SIZE)
+			readMissingTasks(unresolved.subList(from,
+					Math.min(from + MISSING_BATCH_SIZE, unresolved.size())));
+	}
+
+	/**
+	 * Reads activities of local tasks missing in list of open activities
+	 * concurrently and applies their state to local tasks. Resources and work
+	 * time are not read, only state and modification time are needed.
+	 */
+	private void readMissingTasks(List<OpencrxTaskContainer> missing)
+			throws IOException, JSONException {
+		ArrayList<String> crxIds = new ArrayList<String>(missing.size());
+		for (OpencrxTaskContainer local : missing)
+			crxIds.add(local.pdvTask.getValue(OpencrxActivity.CRX_ID));
+
+		HashMap<String, OpencrxRemoteActivity> remoteTasks = invoker
+				.tasksViewOpencrx(crxIds, graph);
+
+		for (OpencrxTaskContainer local : missing) {
+			OpencrxRemoteActivity remote = remoteTasks.get(local.pdvTask
+					.getValue(OpencrxActivity.CRX_ID));
+			matchMissingTask(local, remote == null ? null : parseRemoteTask(
+					remote, new JSONArray(), 0));
+		}
+	}
+
+	/**
+	 * Applies state of remote task missing in list of open activities to local
+	 * one
+	 * 
+	 * @param remote
+	 *            null if there is no such task on server
+	 */
+	private void matchMissingTask(OpencrxTaskContainer local,
+			OpencrxTaskContainer remote) throws IOException {
+		try {
+			if (remote == null)
+				// no such task on remote server - delete local
+				dataService.deleteTaskAndMetadata(local.task.getId());
+			else
+				matchLocalTaskToClosed(local, remote);
+		} catch (ApiServiceException ex) {
+			dataService.deleteTaskAndMetadata(local.task.getId());
+		}
+	}
+
+	/**
+	 * Apply state of remote task which is not open anymore to local one
+	 */
+	private void matchLocalTaskToClosed(OpencrxTaskContainer local,
+			OpencrxTaskContainer remote) throws IOException {
+
+		String idActivity = local.pdvTask.getValue(OpencrxActivity.CRX_ID);
+
+		if (remote.task.isDeleted()) {
+			// remote task is closed
+			if (local.task.isDeleted()) {
+				// local task is closed too - just delete
+				dataService.deleteTaskAndMetadata(local.task.getId());
+			} else if (local.task.isCompleted()) {
+				// local task is completed - check modification time
+				if (isTaskChangedAfter(remote, local)) {
+					dataService.deleteTaskAndMetadata(local.task.getId());
+				} else {
+					invoker.taskComplete(idActivity, graph);
+					dataService.deleteTaskAndMetadata(local.task.getId());
+				}
+			} else {
+				// local task is open - check modification time
+				if (isTaskChangedAfter(remote, local)) {
+					dataService.deleteTaskAndMetadata(local.task.getId());
+				} else {
+					if (!invoker.taskOpen(idActivity, graph))
+						dataService.deleteTaskAndMetadata(local.task.getId());
+				}
+			}
+		} else if (remote.task.isCompleted()) {
+			// remote task is completed
+			if (local.task.isDeleted()) {
+				// local task is closed
+				if (isTaskChangedAfter(remote, local)) {
+					dataService.deleteTaskAndMetadata(local.task.getId());
+				} else {
+					invoker.taskClose(idActivity, graph);
+					dataService.deleteTaskAndMetadata(local.task.getId());
+				}
+			} else if (local.task.isCompleted()) {
+				// local task is completed too - just delete
+				dataService.deleteTaskAndMetadata(local.task.getId());
+			} else {
+				// local task is open - check modification time
+				if (isTaskChangedAfter(remote, local)) {
+					dataService.deleteTaskAndMetadata(local.task.getId());
+				} else {
+					if (!invoker.taskOpen(idActivity, graph))
+						dataService.deleteTaskAndMetadata(local.task.getId());
+				}
+			}
+		} else {
+			dataService.deleteTaskAndMetadata(local.task.getId());
+		}
 	}
 
 	private boolean isTaskChangedAfter(OpencrxTaskContainer task,
@@ -521,9 +807,10 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		TodorooCursor<Task> localCreated = dataService
 				.getLocallyCreated(PROPERTIES);
 
-		// fetch locally updated tasks
+		// fetch tasks updated locally before sync; remote tasks written
+		// during sync look updated too
 		TodorooCursor<Task> localUpdated = dataService
-				.getLocallyUpdated(PROPERTIES);
+				.getMarkedLocallyUpdated(PROPERTIES);
 
 		return new SyncData<OpencrxTaskContainer>(remoteTasks, localCreated,
 				localUpdated);
@@ -557,7 +844,7 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		String idContact = OpencrxDataService.getInstance().getContactCrxId(
 				responsibleId);
 
-		JSONObject response = invoker.tasksCreateOpencrx(
+		OpencrxRemoteActivity response = invoker.tasksCreateOpencrx(
 				localTask.getValue(Task.TITLE), idCreator, idContact,
 				formatDataAsOpencrx(localTask), createStars(localTask), graph);
 
@@ -579,48 +866,87 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 	 * @throws IOException
 	 * @throws ApiServiceException
 	 */
-	private OpencrxTaskContainer parseRemoteTask(JSONObject remoteTask)
+	private OpencrxTaskContainer parseRemoteTask(OpencrxRemoteActivity remoteTask)
 			throws JSONException, ApiServiceException, IOException {
 
 		String resourceId = Preferences
 				.getStringValue(OpencrxUtilities.PREF_RESOURCE_ID);
 
-		String crxId = remoteTask.getString("repeating_value");
+		String crxId = remoteTask.getCrxId();
 
 		JSONArray labels = invoker.resourcesShowForTask(crxId);
 
 		int secondsSpentOnTask = invoker.getSecondsSpentOnTask(crxId,
 				resourceId);
 
+		return parseRemoteTask(remoteTask, labels, secondsSpentOnTask);
+	}
+
+	/**
+	 * Create task containers for activities. Resources and work time are read
+	 * for batches of activities at once.
+	 * 
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	private ArrayList<OpencrxTaskContainer> parseRemoteTasks(
+			List<OpencrxRemoteActivity> remoteTasks) throws JSONException,
+			IOException {
+
+		String resourceId = Preferences
+				.getStringValue(OpencrxUtilities.PREF_RESOURCE_ID);
+
+		ArrayList<OpencrxTaskContainer> ret = new ArrayList<OpencrxTaskContainer>(
+				remoteTasks.size());
+
+		for (int from = 0; from < remoteTasks.size(); from += ENRICH_BATCH_SIZE) {
+			List<OpencrxRemoteActivity> batch = remoteTasks.subList(from,
+					Math.min(from + ENRICH_BATCH_SIZE, remoteTasks.size()));
+
+			List<String> crxIds = new ArrayList<String>(batch.size());
+			for (OpencrxRemoteActivity remoteTask : batch)
+				crxIds.add(remoteTask.getCrxId());
+
+			HashMap<String, JSONArray> labels = invoker
+					.resourcesShowForTasks(crxIds);
+			HashMap<String, Integer> seconds = invoker.getSecondsSpentOnTasks(
+					crxIds, resourceId);
+
+			for (OpencrxRemoteActivity remoteTask : batch) {
+				String crxId = remoteTask.getCrxId();
+				ret.add(parseRemoteTask(remoteTask, labels.get(crxId),
+						seconds.get(crxId)));
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Create a task container from activity and its already read resources
+	 * and work time
+	 * 
+	 * @throws JSONException
+	 */
+	private OpencrxTaskContainer parseRemoteTask(
+			OpencrxRemoteActivity remoteTask, JSONArray labels,
+			int secondsSpentOnTask) throws JSONException {
+
 		Task task = new Task();
 		ArrayList<Metadata> metadata = new ArrayList<Metadata>();
 
-		if (remoteTask.has("task"))
-			remoteTask = remoteTask.getJSONObject("task");
-
-		task.setValue(Task.TITLE,
-				ApiUtilities.decode(remoteTask.getString("title")));
-		task.setValue(Task.NOTES, remoteTask.getString("detailedDescription"));
-		task.setValue(
-				Task.CREATION_DATE,
-				ApiUtilities.producteevToUnixTime(
-						remoteTask.getString("time_created"), 0));
+		task.setValue(Task.TITLE, ApiUtilities.decode(remoteTask.getTitle()));
+		task.setValue(Task.NOTES, remoteTask.getDescription());
+		task.setValue(Task.CREATION_DATE, remoteTask.getCreatedAt());
 		task.setValue(Task.COMPLETION_DATE,
-				remoteTask.getInt("status") == 1 ? DateUtilities.now() : 0);
+				remoteTask.isComplete() ? DateUtilities.now() : 0);
 		task.setValue(Task.DELETION_DATE,
-				remoteTask.getInt("deleted") == 1 ? DateUtilities.now() : 0);
+				remoteTask.isDeleted() ? DateUtilities.now() : 0);
 		task.setValue(Task.ELAPSED_SECONDS, secondsSpentOnTask);
-		task.setValue(Task.MODIFICATION_DATE, remoteTask.getLong("modifiedAt"));
-
-		long dueDate = ApiUtilities.producteevToUnixTime(
-				remoteTask.getString("deadline"), 0);
-		if (remoteTask.optInt("all_day", 0) == 1)
-			task.setValue(Task.DUE_DATE,
-					Task.createDueDate(Task.URGENCY_SPECIFIC_DAY, dueDate));
-		else
-			task.setValue(Task.DUE_DATE,
-					Task.createDueDate(Task.URGENCY_SPECIFIC_DAY_TIME, dueDate));
-		task.setValue(Task.IMPORTANCE, 5 - remoteTask.getInt("star"));
+		task.setValue(Task.MODIFICATION_DATE, remoteTask.getModifiedAt());
+		task.setValue(Task.DUE_DATE, Task.createDueDate(
+				Task.URGENCY_SPECIFIC_DAY_TIME, remoteTask.getDueBy()));
+		task.setValue(Task.IMPORTANCE, 5 - remoteTask.getPriority());
 
 		for (int i = 0; i < labels.length(); i++) {
 			JSONObject label = labels.getJSONObject(i);
@@ -655,7 +981,8 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 			return null;
 
 		try {
-			JSONObject remote = invoker.tasksViewOpencrx(crx_id, graph);
+			OpencrxRemoteActivity remote = invoker.tasksViewOpencrx(crx_id,
+					graph);
 
 			return parseRemoteTask(remote);
 		} catch (ApiServiceException e) {
@@ -746,27 +1073,29 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		if (remote == null || TextUtils.isEmpty(idActivity))
 			return local;
 
-		// core properties
-		if (shouldTransmit(local, Task.TITLE, remote))
-			invoker.taskSetName(idActivity, local.task.getValue(Task.TITLE));
+		// core properties are sent below with one request
+		String name = shouldTransmit(local, Task.TITLE, remote) ? local.task
+				.getValue(Task.TITLE) : null;
 
-		if (shouldTransmit(local, Task.IMPORTANCE, remote))
-			invoker.taskSetPriority(idActivity, createStars(local.task));
+		Integer priority = shouldTransmit(local, Task.IMPORTANCE, remote) ? createStars(local.task)
+				: null;
 
-		if (shouldTransmit(local, Task.DUE_DATE, remote))
-			invoker.tasksSetDueBy(idActivity, formatDataAsOpencrx(local.task));
+		String dueBy = shouldTransmit(local, Task.DUE_DATE, remote) ? formatDataAsOpencrx(local.task)
+				: null;
 
-		// scheduled start
+		// scheduled start, derived from due date and estimate
+		Long scheduledStart = null;
 		if (local.task.containsNonNullValue(Task.DUE_DATE)
 				&& local.task.containsNonNullValue(Task.ESTIMATED_SECONDS)) {
 			long dueDate = local.task.getValue(Task.DUE_DATE); // millis
 			long estimated = local.task.getValue(Task.ESTIMATED_SECONDS) * 1000L; // millis
 
-			if (dueDate != 0 && estimated != 0)
-				invoker.taskSetScheduledStart(idActivity, dueDate - estimated);
+			if (dueDate != 0 && estimated != 0
+					&& dueDate - estimated != remote.scheduledStart)
+				scheduledStart = dueDate - estimated;
 		}
 
-		// tags
+		// tags, applied to remote task as they are transmitted
 		if (transmitTags(local, remote))
 			invoker.taskFollowUpToInProgress(idActivity, graph);
 
@@ -784,25 +1113,79 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 			String resourceId = Preferences
 					.getStringValue(OpencrxUtilities.PREF_RESOURCE_ID);
 
-			if (!TextUtils.isEmpty(resourceId))
+			if (!TextUtils.isEmpty(resourceId)) {
 				invoker.createWorkRecord(idActivity, resourceId, localElapsed
 						- remoteElapsed);
+				remote.task.setValue(Task.ELAPSED_SECONDS, localElapsed);
+			}
 		}
 
 		// notes
-		if (shouldTransmit(local, Task.NOTES, remote))
-			invoker.taskSetDetailedDescription(idActivity,
-					local.task.getValue(Task.NOTES));
+		String description = shouldTransmit(local, Task.NOTES, remote) ? local.task
+				.getValue(Task.NOTES) : null;
 
 		// responsible
-		invoker.taskSetAssignedTo(idActivity, idContact);
-
-		remote = pull(local);
+		String responsible = null;
+		if (!TextUtils.isEmpty(idContact)
+				&& !AndroidUtilities.equals(idResponsible,
+						remote.pdvTask.getValue(OpencrxActivity.ASSIGNED_TO_ID)))
+			responsible = idContact;
+
+		// core properties, notes and responsible
+		invoker.taskModify(idActivity, name, priority, dueBy, scheduledStart,
+				description, responsible);
+
+		// remote task is not read again: transmitted values are applied to it
+		if (name != null)
+			remote.task.setValue(Task.TITLE, local.task.getValue(Task.TITLE));
+		if (priority != null)
+			remote.task.setValue(Task.IMPORTANCE,
+					local.task.getValue(Task.IMPORTANCE));
+		if (dueBy != null)
+			remote.task.setValue(Task.DUE_DATE,
+					local.task.getValue(Task.DUE_DATE));
+		if (description != null)
+			remote.task.setValue(Task.NOTES, local.task.getValue(Task.NOTES));
+		if (scheduledStart != null)
+			remote.scheduledStart = scheduledStart;
+		if (responsible != null)
+			remote.pdvTask.setValue(OpencrxActivity.ASSIGNED_TO_ID,
+					idResponsible);
 
 		return remote;
 
 	}
 
+	/**
+	 * Adds tag transmitted by
+	 * {@link #transmitTags(OpencrxTaskContainer, OpencrxTaskContainer)} to
+	 * remote task
+	 */
+	private static void addRemoteTag(OpencrxTaskContainer remote, String label) {
+		if (remote.metadata == null)
+			remote.metadata = new ArrayList<Metadata>();
+
+		Metadata tagData = new Metadata();
+		tagData.setValue(Metadata.KEY, OpencrxDataService.TAG_KEY);
+		tagData.setValue(OpencrxDataService.TAG, label);
+		remote.metadata.add(tagData);
+	}
+
+	/**
+	 * Removes tag deleted by
+	 * {@link #transmitTags(OpencrxTaskContainer, OpencrxTaskContainer)} from
+	 * remote task
+	 */
+	private static void removeRemoteTag(OpencrxTaskContainer remote,
+			String label) {
+		for (Iterator<Metadata> i = remote.metadata.iterator(); i.hasNext();) {
+			Metadata item = i.next();
+			if (OpencrxDataService.TAG_KEY.equals(item.getValue(Metadata.KEY))
+					&& label.equals(item.getValue(OpencrxDataService.TAG)))
+				i.remove();
+		}
+	}
+
 	/**
 	 * Transmit tags
 	 * 
@@ -813,6 +1196,7 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 	 * @throws ApiServiceException
 	 * @throws JSONException
 	 * @throws IOException
+	 * @return true if tags were added
 	 */
 	private boolean transmitTags(OpencrxTaskContainer local,
 			OpencrxTaskContainer remote) throws ApiServiceException,
@@ -851,6 +1235,8 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 
 					try {
 						invoker.taskAssignResource(activityId, resourceId);
+						if (remote != null && remote != local)
+							addRemoteTag(remote, label);
 					} catch (ApiServiceException ex) {
 						// Possible internal server error if resource is bad
 						// formed - ignore it
@@ -878,6 +1264,8 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 						try {
 							invoker.resourceAssignmentDelete(activityId,
 									assignment.getAssignmentId());
+							if (remote != local)
+								removeRemoteTag(remote, label);
 						} catch (IOException ex) {
 							// Possible internal server error if we don't have
 							// rights to delete this - ignore it
@@ -902,7 +1290,7 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 
 	@Override
 	protected void write(OpencrxTaskContainer task) throws IOException {
-		dataService.saveTaskAndMetadata(task);
+		dataService.batchSaveTaskAndMetadata(task);
 	}
 
 	// ----------------------------------------------------------------------
@@ -912,15 +1300,41 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 	@Override
 	protected int matchTask(ArrayList<OpencrxTaskContainer> tasks,
 			OpencrxTaskContainer target) {
-		int length = tasks.size();
-		for (int i = 0; i < length; i++) {
-			OpencrxTaskContainer task = tasks.get(i);
-			if (target.pdvTask.containsNonNullValue(OpencrxActivity.ID)
-					&& task.pdvTask.getValue(OpencrxActivity.ID).equals(
-							target.pdvTask.getValue(OpencrxActivity.ID)))
-				return i;
+		if (!target.pdvTask.containsNonNullValue(OpencrxActivity.ID))
+			return -1;
+
+		Long id = target.pdvTask.getValue(OpencrxActivity.ID);
+
+		if (tasks != indexedTasks || tasks.size() != indexedSize)
+			indexRemoteTasks(tasks);
+
+		Integer index = remoteIndex.get(id);
+		if (index == null)
+			return -1;
+
+		// list may be changed in place after it was indexed
+		if (!id.equals(tasks.get(index).pdvTask.getValue(OpencrxActivity.ID))) {
+			indexRemoteTasks(tasks);
+			index = remoteIndex.get(id);
 		}
-		return -1;
+
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Index remote tasks by activity id. First task wins if id repeats.
+	 */
+	private void indexRemoteTasks(ArrayList<OpencrxTaskContainer> tasks) {
+		remoteIndex = new HashMap<Long, Integer>(tasks.size() * 2);
+
+		for (int i = tasks.size() - 1; i >= 0; i--) {
+			Long id = tasks.get(i).pdvTask.getValue(OpencrxActivity.ID);
+			if (id != null)
+				remoteIndex.put(id, i);
+		}
+
+		indexedTasks = tasks;
+		indexedSize = tasks.size();
 	}
 
 	/**
@@ -1035,20 +1449,6 @@ public class OpencrxSyncProvider extends SyncProvider<OpencrxTaskContainer> {
 		return id;
 	}
 
-	private boolean existRemoteMatch(String crxId,
-			ArrayList<OpencrxTaskContainer> remoteTasks) {
-
-		for (OpencrxTaskContainer task : remoteTasks) {
-			if (task.pdvTask.containsNonNullValue(OpencrxActivity.CRX_ID)
-					&& crxId.equals(task.pdvTask
-							.getValue(OpencrxActivity.CRX_ID))) {
-				return true;
-			}
-		}
-
-		return false;
-	}
-
 	@Override
 	protected SyncProviderUtilities getUtilities() {
 		return OpencrxUtilities.INSTANCE;
@@ -3,8 +3,6 @@ package ru.otdelit.astrid.opencrx.sync;
 import java.util.ArrayList;
 import java.util.Iterator;
 
-import org.json.JSONObject;
-
 import com.todoroo.astrid.data.Metadata;
 import com.todoroo.astrid.data.Task;
 import com.todoroo.astrid.sync.SyncContainer;
@@ -19,6 +17,9 @@ public class OpencrxTaskContainer extends SyncContainer {
 
     public Metadata pdvTask;
 
+    /** scheduled start of remote activity, millis, 0 if not set */
+    public long scheduledStart;
+
     public OpencrxTaskContainer(Task task, ArrayList<Metadata> metadata, Metadata pdvTask) {
         this.task = task;
         this.metadata = metadata;
@@ -28,15 +29,15 @@ public class OpencrxTaskContainer extends SyncContainer {
         }
     }
 
-    @SuppressWarnings("nls")
-    public OpencrxTaskContainer(Task task, ArrayList<Metadata> metadata, JSONObject remoteTask) {
+    public OpencrxTaskContainer(Task task, ArrayList<Metadata> metadata, OpencrxRemoteActivity remoteTask) {
         this(task, metadata, new Metadata());
         pdvTask.setValue(Metadata.KEY, OpencrxActivity.METADATA_KEY);
-        pdvTask.setValue(OpencrxActivity.ID, remoteTask.optLong("id_task"));
-        pdvTask.setValue(OpencrxActivity.ACTIVITY_CREATOR_ID, remoteTask.optLong("id_dashboard"));
-        pdvTask.setValue(OpencrxActivity.ASSIGNED_TO_ID, remoteTask.optLong("id_responsible"));
-        pdvTask.setValue(OpencrxActivity.USERCREATOR_ID, remoteTask.optLong("id_creator"));
-        pdvTask.setValue(OpencrxActivity.CRX_ID, remoteTask.optString("repeating_value"));
+        pdvTask.setValue(OpencrxActivity.ID, remoteTask.getId());
+        pdvTask.setValue(OpencrxActivity.ACTIVITY_CREATOR_ID, remoteTask.getCreatorId());
+        pdvTask.setValue(OpencrxActivity.ASSIGNED_TO_ID, remoteTask.getContactId());
+        pdvTask.setValue(OpencrxActivity.USERCREATOR_ID, 0L);
+        pdvTask.setValue(OpencrxActivity.CRX_ID, remoteTask.getCrxId() == null ? "" : remoteTask.getCrxId()); //$NON-NLS-1$
+        scheduledStart = remoteTask.getScheduledStart();
     }
 
     public OpencrxTaskContainer(Task task, ArrayList<Metadata> metadata) {
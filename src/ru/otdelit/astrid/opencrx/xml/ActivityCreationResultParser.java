@@ -1,43 +1,33 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ActivityCreationResultParser extends BaseParser{
-	private String id;
 
-	public String getId() {
-		return id;
-	}
+    private static final int ACTIVITY = 0;
 
-    @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
+    private static final Elements ELEMENTS = new Elements("activity");
 
-        if (qName.equals("activity")){
-            id = OpencrxUtils.getBaseXri(buffer.toString());
-        }
+	private String id;
 
-        super.endElement(uri, localName, qName);
+	public ActivityCreationResultParser() {
+	    super(ELEMENTS);
+	}
 
-    }
+	public String getId() {
+		return id;
+	}
 
     @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("activity")){
-            buffer = new StringBuilder();
-        }
+    protected void endElement(int element) {
+        if (element == ACTIVITY)
+            id = OpencrxUtils.getBaseXri(getText());
     }
 
 }
@@ -3,82 +3,73 @@ package ru.otdelit.astrid.opencrx.xml;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import android.util.Log;
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
- * 
+ *
  */
 @SuppressWarnings("nls")
 public class ActivityCreatorParser extends BaseParser {
 
+	private static final int CREATOR = 0;
+	private static final int NAME = 1;
+
+	private static final Elements ELEMENTS = new Elements(
+			"org.opencrx.kernel.activity1.ActivityCreator", "name");
+
 	private final JSONArray destination;
 	private JSONObject dashboard;
 
 	public ActivityCreatorParser(JSONArray destination) {
+		super(ELEMENTS);
 		this.destination = destination;
 	}
 
 	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
-
+	protected void endElement(int element) throws XmlPullParserException {
 		try {
-			if (qName.equals("name"))
-				dashboard.put("title", buffer.toString());
-		} catch (Exception e) {
-			throw new SAXException(e);
-
-		}
-
-		if (qName.equals("org.opencrx.kernel.activity1.ActivityCreator")) {
-
-			JSONObject wrap = new JSONObject();
-			try {
+			switch (element) {
+			case NAME:
+				if (dashboard != null)
+					dashboard.put("title", getText());
+				break;
+
+			case CREATOR:
+				JSONObject wrap = new JSONObject();
 				wrap.put("dashboard", dashboard);
-			} catch (JSONException e) {
-				throw new SAXException(e);
-			}
-
-			destination.put(wrap);
 
+				destination.put(wrap);
+				break;
+			}
+		} catch (JSONException e) {
+			throw new XmlPullParserException(e.getMessage(), null, e);
 		}
-
-		super.endElement(uri, localName, qName);
-
 	}
 
 	@Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
-
-		super.startElement(uri, localName, qName, attributes);
+	protected void startElement(int element, XmlPullParser xml)
+			throws XmlPullParserException {
+		if (element != CREATOR)
+			return;
 
-		if (qName.equals("org.opencrx.kernel.activity1.ActivityCreator")) {
-			dashboard = new JSONObject();
-
-			try {
-				dashboard.put("deleted", 0);
-				dashboard.put("accesslist", new JSONArray());
-				dashboard.put("title", "");
-
-				String crxId = attributes.getValue("id");
-				dashboard.put("id_dashboard", OpencrxUtils.hash(crxId));
-				dashboard.put("crx_id", crxId);
-			} catch (JSONException e) {
-				throw new SAXException(e);
-			}
+		dashboard = new JSONObject();
 
+		try {
+			dashboard.put("deleted", 0);
+			dashboard.put("accesslist", new JSONArray());
+			dashboard.put("title", "");
+
+			String crxId = xml.getAttributeValue(null, "id");
+			dashboard.put("id_dashboard", OpencrxUtils.hash(crxId));
+			dashboard.put("crx_id", crxId);
+		} catch (JSONException e) {
+			throw new XmlPullParserException(e.getMessage(), null, e);
 		}
-
-		if (qName.equals("name"))
-			buffer = new StringBuilder();
-
 	}
 
 }
@@ -1,20 +1,24 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ActivityCurrentProcessParser extends BaseParser{
 
+    private static final int PROCESS_STATE = 0;
+
+    private static final Elements ELEMENTS = new Elements("processState");
 
     private String processId;
 	private String processStateId;
 
+	public ActivityCurrentProcessParser() {
+	    super(ELEMENTS);
+	}
+
 	public String getProcessId() {
 		return processId;
 	}
@@ -24,35 +28,19 @@ public class ActivityCurrentProcessParser extends BaseParser{
 	}
 
     @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
-        if (qName.equals("processState")){
-            String stateXri = buffer.toString();
-            System.out.println("State XRI: " + stateXri);
-
-            String arr[] = stateXri.split("/");
-
-            if (arr.length < 3){
-                processId = null;
-                processStateId = null;
-            }else{
-                processId = arr[arr.length - 3];
-                processStateId = arr[arr.length - 1];
-            }
-        }
-
-        super.endElement(uri, localName, qName);
-    }
-
-    @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("processState")){
-            buffer = new StringBuilder();
+    protected void endElement(int element) {
+        if (element != PROCESS_STATE)
+            return;
+
+        String arr[] = getText().split("/");
+
+        if (arr.length < 3){
+            processId = null;
+            processStateId = null;
+        }else{
+            processId = arr[arr.length - 3];
+            processStateId = arr[arr.length - 1];
         }
     }
 
-
 }
@@ -1,173 +1,168 @@
 package ru.otdelit.astrid.opencrx.xml;
 
 import java.text.ParseException;
-import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import ru.otdelit.astrid.opencrx.api.OpencrxDateCodec;
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
-
-
-
+import ru.otdelit.astrid.opencrx.sync.OpencrxRemoteActivity;
 import android.text.TextUtils;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ActivityParser extends BaseParser {
 
-    private final static List<String> tags = Arrays.asList("name", "createdAt", "dueBy", "priority", "lastAppliedCreator", "assignedTo",
-            "processState", "modifiedAt", "detailedDescription");
-
-    private final JSONArray destination;
+    private static final int NAME = 0;
+    private static final int CREATED_AT = 1;
+    private static final int DUE_BY = 2;
+    private static final int PRIORITY = 3;
+    private static final int LAST_APPLIED_CREATOR = 4;
+    private static final int ASSIGNED_TO = 5;
+    private static final int PROCESS_STATE = 6;
+    private static final int MODIFIED_AT = 7;
+    private static final int DETAILED_DESCRIPTION = 8;
+    private static final int ACTIVITY_STATE = 9;
+    private static final int SCHEDULED_START = 10;
+    private static final int ACTIVITY = 11;
+
+    private static final Elements ELEMENTS = new Elements("name", "createdAt", "dueBy", "priority", "lastAppliedCreator",
+            "assignedTo", "processState", "modifiedAt", "detailedDescription", "activityState", "scheduledStart");
+
+    /** every activity type of this package is an activity */
+    private static final String ACTIVITY_PACKAGE = "org.opencrx.kernel.activity1";
+
+    /** activityState of closed activity */
+    private final static String ACTIVITY_STATE_CLOSED = "20";
+
+    private final List<OpencrxRemoteActivity> destination;
     private final String closedStateId;
     private final String completeStateId;
 
-    private JSONObject task;
+    private OpencrxRemoteActivity task;
 
-	public ActivityParser(JSONArray destination, String completeStateId, String closedStateid) {
+	public ActivityParser(List<OpencrxRemoteActivity> destination, String completeStateId, String closedStateid) {
+	    super(ELEMENTS);
         this.destination = destination;
         this.closedStateId = closedStateid;
         this.completeStateId = completeStateId;
     }
 
 	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
+	protected int getElementId(String name) {
+	    if (name.startsWith(ACTIVITY_PACKAGE))
+	        return ACTIVITY;
 
-	    if (task == null){
-	        super.endElement(uri, localName, qName);
+	    return super.getElementId(name);
+	}
+
+	@Override
+	protected void endElement(int element) throws XmlPullParserException {
+
+	    if (task == null)
 	        return;
-	    }
 
         try {
-            if (qName.equals("name")){
-                 task.put("title", buffer.toString());
-            }
+            switch (element) {
+            case NAME:
+                task.setTitle(getText());
+                break;
 
-            if (qName.equals("detailedDescription")){
-                task.put("detailedDescription", buffer.toString());
-            }
+            case DETAILED_DESCRIPTION:
+                task.setDescription(getText());
+                break;
 
-            if (qName.equals("processState")){
-                String stateId = OpencrxUtils.getBaseXri(buffer.toString());
+            case PROCESS_STATE:
+                String stateXri = getText();
+                String stateId = OpencrxUtils.getBaseXri(stateXri);
 
                 if (TextUtils.isEmpty(stateId))
-                    return;
+                    break;
 
-                if (stateId.equals(completeStateId))
-                    task.put("status", 1);
-
-                if (stateId.equals(closedStateId))
-                    task.put("deleted", 1);
-            }
-
-            if (qName.equals("createdAt")){
-                String raw = buffer.toString();
-
-                if (!TextUtils.isEmpty(raw)){
-                    Date createdAt = OpencrxUtils.parseFromOpencrx(raw);
-                    String asProducteev = OpencrxUtils.formatAsProducteev(createdAt);
-
-                    task.put("time_created", asProducteev);
+                // xri ends with <process id>/state/<state id>
+                String[] arr = stateXri.split("/");
+                if (arr.length >= 3){
+                    task.setProcessId(arr[arr.length - 3]);
+                    task.setProcessStateId(stateId);
                 }
-            }
-
-            if (qName.equals("modifiedAt")){
-                String raw = buffer.toString();
-
-                if (!TextUtils.isEmpty(raw)){
-                    Date modifiedAt = OpencrxUtils.parseFromOpencrx(raw);
 
-                    task.put("modifiedAt", modifiedAt.getTime());
-                }
-
-            }
-
-            if (qName.equals("dueBy")){
-                String raw = buffer.toString();
-
-                if (!TextUtils.isEmpty(raw)){
-
-                    Date createdAt = OpencrxUtils.parseFromOpencrx(raw);
-                    String asProducteev = OpencrxUtils.formatAsProducteev(createdAt);
-
-                    task.put("deadline", asProducteev);
-                }
-            }
-
-            if (qName.equals("priority")){
-                task.put("star", buffer.toString());
-            }
-
-            if (qName.equals("lastAppliedCreator")){
-                String creatorId = OpencrxUtils.getBaseXri(buffer.toString());
-                task.put("id_dashboard", OpencrxUtils.hash(creatorId) );
-            }
+                if (stateId.equals(completeStateId))
+                    task.setComplete(true);
 
-            if (qName.equals("assignedTo")){
-                String contactId = OpencrxUtils.getBaseXri(buffer.toString());
-                task.put("id_responsible", OpencrxUtils.hash(contactId) );
+                if (stateId.equals(closedStateId))
+                    task.setDeleted(true);
+                break;
+
+            case ACTIVITY_STATE:
+                if (ACTIVITY_STATE_CLOSED.equals(getText().trim()))
+                    task.setClosed(true);
+                break;
+
+            case CREATED_AT:
+                if (!isTextEmpty())
+                    task.setCreatedAt(OpencrxDateCodec.parse(getTextSequence()));
+                break;
+
+            case MODIFIED_AT:
+                if (!isTextEmpty())
+                    task.setModifiedAt(OpencrxDateCodec.parse(getTextSequence()));
+                break;
+
+            case DUE_BY:
+                if (!isTextEmpty())
+                    task.setDueBy(OpencrxDateCodec.parse(getTextSequence()));
+                break;
+
+            case SCHEDULED_START:
+                if (!isTextEmpty())
+                    task.setScheduledStart(OpencrxDateCodec.parse(getTextSequence()));
+                break;
+
+            case PRIORITY:
+                String priority = getText().trim();
+
+                if (!TextUtils.isEmpty(priority))
+                    task.setPriority(Integer.parseInt(priority));
+                break;
+
+            case LAST_APPLIED_CREATOR:
+                task.setCreatorId(OpencrxUtils.hash(OpencrxUtils.getBaseXri(getText())));
+                break;
+
+            case ASSIGNED_TO:
+                task.setContactId(OpencrxUtils.hash(OpencrxUtils.getBaseXri(getText())));
+                break;
+
+            case ACTIVITY:
+                destination.add(task);
+                task = null;
+                break;
             }
         } catch (ParseException e) {
-            throw new SAXException(e);
-        } catch (JSONException e) {
-            throw new SAXException(e);
+            throw new XmlPullParserException(e.getMessage(), null, e);
+        } catch (NumberFormatException e) {
+            throw new XmlPullParserException(e.getMessage(), null, e);
         }
-
-		if (qName.startsWith("org.opencrx.kernel.activity1")){
-			destination.put(task);
-		}
-
-		super.endElement(uri, localName, qName);
-
 	}
 
 	@Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
-
-		super.startElement(uri, localName, qName, attributes);
-
-		if (qName.startsWith("org.opencrx.kernel.activity1")){
-
-		    task = new JSONObject();
-
-		    String id = attributes.getValue("id");
-
-            try {
-                task.put("repeating_value", id);
-                task.put("id_task", OpencrxUtils.hash(id) );
-                task.put("status", 0);
-                task.put("deleted", 0);
-                task.put("labels", new JSONArray());
-
-                task.put("title", "");
-                task.put("detailedDescription", "");
-                task.put("time_created", "");
-                task.put("deadline", "");
-                task.put("star", "0");
-                task.put("id_dashboard", 0);
-                task.put("id_responsible", 0);
-                task.put("modifiedAt", 0);
-            } catch (JSONException e) {
-                throw new SAXException(e);
-            }
+	protected void startElement(int element, XmlPullParser xml) {
+
+		if (element != ACTIVITY)
+		    return;
 
-		}
+	    task = new OpencrxRemoteActivity();
 
-        if (tags.contains(qName))
-            initBuffer();
+	    String id = xml.getAttributeValue(null, "id");
 
+	    task.setCrxId(id);
+	    task.setId(OpencrxUtils.hash(id));
 	}
 
 }
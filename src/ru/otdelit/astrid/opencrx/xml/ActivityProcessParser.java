@@ -1,27 +1,68 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import java.text.ParseException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import ru.otdelit.astrid.opencrx.api.OpencrxDateCodec;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
+@SuppressWarnings("nls")
 public class ActivityProcessParser extends BaseParser{
+
+	private static final int PROCESS = 0;
+	private static final int MODIFIED_AT = 1;
+
+	private static final Elements ELEMENTS = new Elements(
+			"org.opencrx.kernel.activity1.ActivityProcess", "modifiedAt");
+
 	private String id;
+	private long modifiedAt;
+
+	private boolean inProcess = false;
+
+	public ActivityProcessParser() {
+		super(ELEMENTS);
+	}
 
 	public String getId() {
 		return id;
 	}
 
-	@SuppressWarnings("nls")
+	/** @return modification time of process in millis, 0 if unknown */
+	public long getModifiedAt() {
+		return modifiedAt;
+	}
+
     @Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
-		super.startElement(uri, localName, qName, attributes);
+	protected void startElement(int element, XmlPullParser xml) {
+		if (element == PROCESS){
+			id = xml.getAttributeValue(null, "id");
+			inProcess = true;
+		}
+	}
+
+	@Override
+	protected void endElement(int element) throws XmlPullParserException {
+		switch (element) {
+		case MODIFIED_AT:
+			if (inProcess && !isTextEmpty()){
+				try {
+					modifiedAt = OpencrxDateCodec.parse(getTextSequence());
+				} catch (ParseException e) {
+					throw new XmlPullParserException(e.getMessage(), null, e);
+				}
+			}
+			break;
 
-		if (qName.equals("org.opencrx.kernel.activity1.ActivityProcess"))
-			id = attributes.getValue("id");
+		case PROCESS:
+			inProcess = false;
+			break;
+		}
 	}
 }
@@ -2,54 +2,56 @@ package ru.otdelit.astrid.opencrx.xml;
 
 import java.util.List;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
 
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessState;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ActivityProcessStateParser extends BaseParser{
 
+	private static final int STATE = 0;
+	private static final int NAME = 1;
+
+	private static final Elements ELEMENTS = new Elements(
+			"org.opencrx.kernel.activity1.ActivityProcessState", "name");
+
 	private final List<OpencrxActivityProcessState> dest;
 	private OpencrxActivityProcessState current;
 
     public ActivityProcessStateParser(List<OpencrxActivityProcessState> dest) {
+		super(ELEMENTS);
 		this.dest = dest;
 	}
 
 	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
-
-		if (qName.equals("name"))
-			current.setName(buffer.toString());
-
-        if (qName.equals("org.opencrx.kernel.activity1.ActivityProcessState"))
-        	dest.add(current);
-
-		super.endElement(uri, localName, qName);
+	protected void endElement(int element) {
+		if (current == null)
+			return;
+
+		switch (element) {
+		case NAME:
+			current.setName(getText());
+			break;
+
+		case STATE:
+			dest.add(current);
+			current = null;
+			break;
+		}
 	}
 
     @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("org.opencrx.kernel.activity1.ActivityProcessState")){
+    protected void startElement(int element, XmlPullParser xml) {
+        if (element == STATE){
         	current = new OpencrxActivityProcessState();
 
-            current.setId(attributes.getValue("id"));
+            current.setId(xml.getAttributeValue(null, "id"));
         }
-
-        if (qName.equals("name"))
-        	initBuffer();
-
     }
 
 }
@@ -1,29 +1,34 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import java.util.Arrays;
 import java.util.List;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
 
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessState;
 import ru.otdelit.astrid.opencrx.sync.OpencrxActivityProcessTransition;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ActivityProcessTransitionParser extends BaseParser{
 
-    private final static List<String> tags = Arrays.asList("name", "prevState", "nextState");
+    private static final int TRANSITION = 0;
+    private static final int NAME = 1;
+    private static final int PREV_STATE = 2;
+    private static final int NEXT_STATE = 3;
+
+    private static final Elements ELEMENTS = new Elements(
+            "org.opencrx.kernel.activity1.ActivityProcessTransition", "name", "prevState", "nextState");
 
 	private final List<OpencrxActivityProcessTransition> result;
 	private OpencrxActivityProcessTransition current;
 
 	public ActivityProcessTransitionParser(List<OpencrxActivityProcessTransition> dest){
+		super(ELEMENTS);
 		result = dest;
 	}
 
@@ -32,45 +37,36 @@ public class ActivityProcessTransitionParser extends BaseParser{
 	}
 
 	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
-
-	    if (qName.equals("name"))
-	        current.setName(buffer.toString());
-
-        if (qName.equals("prevState")){
-            String prevStateXri = buffer.toString();
-
-            current.setPrevState(new OpencrxActivityProcessState(OpencrxUtils.getBaseXri(prevStateXri), null));
-        }
-
-        if (qName.equals("nextState")){
-            String nextStateXri = buffer.toString();
-
-            current.setNextState(new OpencrxActivityProcessState(OpencrxUtils.getBaseXri(nextStateXri), null));
-        }
-
-		if (qName.equals("org.opencrx.kernel.activity1.ActivityProcessTransition"))
-			result.add(current);
-
-		super.endElement(uri, localName, qName);
-
+	protected void endElement(int element) {
+	    if (current == null)
+	        return;
+
+	    switch (element) {
+	    case NAME:
+	        current.setName(getText());
+	        break;
+
+	    case PREV_STATE:
+	        current.setPrevState(new OpencrxActivityProcessState(OpencrxUtils.getBaseXri(getText()), null));
+	        break;
+
+	    case NEXT_STATE:
+	        current.setNextState(new OpencrxActivityProcessState(OpencrxUtils.getBaseXri(getText()), null));
+	        break;
+
+	    case TRANSITION:
+	        result.add(current);
+	        current = null;
+	        break;
+	    }
 	}
 
 	@Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
-
-		super.startElement(uri, localName, qName, attributes);
-
-		if (qName.equals("org.opencrx.kernel.activity1.ActivityProcessTransition")){
+	protected void startElement(int element, XmlPullParser xml) {
+		if (element == TRANSITION){
 			current = new OpencrxActivityProcessTransition();
 
-			current.setId(attributes.getValue("id"));
+			current.setId(xml.getAttributeValue(null, "id"));
 		}
-
-		if (tags.contains(qName))
-		    initBuffer();
-
 	}
 }
@@ -1,54 +1,91 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
 
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
+/**
+ *
+ * @author Andrey Marchenko <igendou@gmail.com>
+ *
+ */
+@SuppressWarnings("nls")
 public class ActiviyFollowUpParser extends BaseParser{
 
-    private final static List<String> tags = Arrays.asList("text", "transition");
+    private static final int FOLLOW_UP = 0;
+    private static final int TEXT = 1;
+    private static final int TRANSITION = 2;
 
-    private final List<String> result;
+    private static final Elements ELEMENTS = new Elements(
+            "org.opencrx.kernel.activity1.ActivityFollowUp", "text", "transition");
+
+    /** follow-up is addressed as .../activity/<activity id>/followUp/<id> */
+    private static final String ACTIVITY_PATH = "/activity/";
+
+    private final Map<String, List<String>> result;
 	private final String transitionId;
-	
+
 	private String currentText;
 	private String currentTransition;
-	
-	public ActiviyFollowUpParser(List<String> dest, String transitionId) {
+	private String currentActivity;
+
+	/**
+	 * Parses follow-ups of many activities, grouping their texts by activity
+	 * id
+	 */
+	public ActiviyFollowUpParser(Map<String, List<String>> dest,
+			String transitionId) {
+		super(ELEMENTS);
 		result = dest;
 		this.transitionId = transitionId;
 	}
 
 	@Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
-		super.startElement(uri, localName, qName, attributes);
-		
-		if (tags.contains(qName))
-		    initBuffer();
+	protected void startElement(int element, XmlPullParser xml) {
+		if (element != FOLLOW_UP)
+			return;
+
+		currentText = currentTransition = currentActivity = null;
+
+		String href = xml.getAttributeValue(null, "href");
+		int start = href == null ? -1 : href.indexOf(ACTIVITY_PATH);
+		if (start < 0)
+			return;
+
+		start += ACTIVITY_PATH.length();
+		int end = href.indexOf('/', start);
+		currentActivity = end < 0 ? href.substring(start) : href.substring(
+				start, end);
 	}
 
 	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
-
-		if (qName.equals("text"))
-			currentText = buffer.toString();
-
-		if (qName.equals("transition"))
-			currentTransition = OpencrxUtils.getBaseXri(buffer.toString());
-		
-		if (qName.equals("org.opencrx.kernel.activity1.ActivityFollowUp"))
-			if (transitionId.equals(currentTransition))
-				result.add(currentText);
-		
-		super.endElement(uri, localName, qName);
+	protected void endElement(int element) {
+		switch (element) {
+		case TEXT:
+			currentText = getText();
+			break;
+
+		case TRANSITION:
+			currentTransition = OpencrxUtils.getBaseXri(getText());
+			break;
+
+		case FOLLOW_UP:
+			if (!transitionId.equals(currentTransition) || currentText == null
+					|| currentActivity == null)
+				break;
+
+			List<String> notes = result.get(currentActivity);
+			if (notes == null) {
+				notes = new ArrayList<String>();
+				result.put(currentActivity, notes);
+			}
+			notes.add(currentText);
+			break;
+		}
 	}
-	
-	
 
 }
@@ -1,21 +1,63 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 /**
- * 
+ * Base of pull parsers for OpenCRX REST answers. Parser declares names of
+ * elements it needs, they are dispatched by int id. Text is collected only for
+ * declared elements into one reused buffer. Undeclared children of declared
+ * elements are skipped with their subtrees, undeclared elements elsewhere are
+ * only descended into.
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
-public class BaseParser extends DefaultHandler{
+public abstract class BaseParser {
+
+	/** id of undeclared element */
+	protected static final int UNKNOWN = -1;
+
+	private static final String RESULT_SET = "org.openmdx.kernel.ResultSet";
+
+	/**
+	 * Names of elements needed by parser, id of element is its position
+	 */
+	protected static final class Elements {
+		private final HashMap<String, Integer> ids;
+
+		public Elements(String... names) {
+			ids = new HashMap<String, Integer>(names.length * 2);
+			for (int i = 0; i < names.length; i++)
+				ids.put(names[i], i);
+		}
+
+		public int idOf(String name) {
+			Integer id = ids.get(name);
+			return id == null ? UNKNOWN : id;
+		}
+	}
+
+	private final Elements elements;
 
 	private boolean isResultSet = false;
 	private boolean hasMore = false;
 
-	protected StringBuilder buffer = new StringBuilder();
+	private char[] text = new char[256];
+	private int textLength;
+
+	private int[] idStack = new int[16];
+
+	private final int[] textBounds = new int[2];
+
+	protected BaseParser(Elements elements) {
+		this.elements = elements;
+	}
 
 	public boolean isResultSet() {
 		return isResultSet;
@@ -25,37 +67,134 @@ public class BaseParser extends DefaultHandler{
 		return hasMore;
 	}
 
-	@Override
-    public final void characters(char[] ch, int start, int length)
-            throws SAXException {
-	    if (buffer != null)
-	        buffer.append(ch, start, length);
-    }
+	/**
+	 * Reads document from parser positioned at its start
+	 */
+	public final void parse(XmlPullParser xml) throws XmlPullParserException,
+			IOException {
+		int depth = 0;
+
+		for (int event = xml.next(); event != XmlPullParser.END_DOCUMENT; event = xml
+				.next()) {
+			switch (event) {
+			case XmlPullParser.START_TAG:
+				String name = xml.getName();
+
+				if (RESULT_SET.equals(name)) {
+					isResultSet = true;
+					if ("true".equals(xml.getAttributeValue(null, "hasMore")))
+						hasMore = true;
+				}
+
+				int id = getElementId(name);
+
+				if (id == UNKNOWN && depth > 0 && idStack[depth - 1] != UNKNOWN) {
+					skipSubtree(xml);
+					break;
+				}
+
+				if (depth == idStack.length) {
+					int[] grown = new int[depth * 2];
+					System.arraycopy(idStack, 0, grown, 0, depth);
+					idStack = grown;
+				}
+				idStack[depth++] = id;
+				textLength = 0;
+
+				if (id != UNKNOWN)
+					startElement(id, xml);
+				break;
+
+			case XmlPullParser.TEXT:
+				if (depth > 0 && idStack[depth - 1] != UNKNOWN)
+					appendText(xml.getTextCharacters(textBounds),
+							textBounds[0], textBounds[1]);
+				break;
+
+			case XmlPullParser.END_TAG:
+				id = idStack[--depth];
+				if (id != UNKNOWN)
+					endElement(id);
+				textLength = 0;
+				break;
+			}
+		}
+	}
 
-    @Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
+	/**
+	 * @return id of element, {@link #UNKNOWN} if parser does not need it
+	 */
+	protected int getElementId(String name) {
+		return elements.idOf(name);
+	}
 
-		if (qName.equals("org.openmdx.kernel.ResultSet")){
-			isResultSet = true;
+	/**
+	 * Called on start of declared element, attributes may be read from parser
+	 */
+	protected void startElement(int id, XmlPullParser xml)
+			throws XmlPullParserException {
+		// nothing by default
+	}
 
-			if ("true".equals(attributes.getValue("hasMore")) )
-				hasMore = true;
-		}
+	/**
+	 * Called on end of declared element, its text is available
+	 */
+	protected void endElement(int id) throws XmlPullParserException {
+		// nothing by default
+	}
+
+	/** @return text of current element */
+	protected String getText() {
+		return new String(text, 0, textLength);
+	}
 
+	/** @return text of current element without copying it */
+	protected CharSequence getTextSequence() {
+		return CharBuffer.wrap(text, 0, textLength);
 	}
 
-    @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
-        buffer = null;
-    }
+	protected boolean isTextEmpty() {
+		return textLength == 0;
+	}
 
-    protected void initBuffer() {
-        buffer = new StringBuilder();
-    }
+	protected boolean textEquals(String value) {
+		if (value.length() != textLength)
+			return false;
+		for (int i = 0; i < textLength; i++)
+			if (value.charAt(i) != text[i])
+				return false;
+		return true;
+	}
 
+	private void appendText(char[] chars, int start, int length) {
+		if (chars == null)
+			return;
 
+		if (textLength + length > text.length) {
+			char[] grown = new char[Math.max(text.length * 2, textLength
+					+ length)];
+			System.arraycopy(text, 0, grown, 0, textLength);
+			text = grown;
+		}
+		System.arraycopy(chars, start, text, textLength, length);
+		textLength += length;
+	}
 
+	private static void skipSubtree(XmlPullParser xml)
+			throws XmlPullParserException, IOException {
+		int depth = 1;
+		while (depth > 0) {
+			switch (xml.next()) {
+			case XmlPullParser.START_TAG:
+				depth++;
+				break;
+			case XmlPullParser.END_TAG:
+				depth--;
+				break;
+			case XmlPullParser.END_DOCUMENT:
+				return;
+			}
+		}
+	}
 
 }
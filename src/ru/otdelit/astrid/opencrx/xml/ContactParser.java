@@ -1,67 +1,80 @@
 package ru.otdelit.astrid.opencrx.xml;
 
+import java.text.ParseException;
 import java.util.List;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import ru.otdelit.astrid.opencrx.api.OpencrxDateCodec;
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 import ru.otdelit.astrid.opencrx.sync.OpencrxContact;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ContactParser extends BaseParser{
 
+    private static final int CONTACT = 0;
+    private static final int FIRST_NAME = 1;
+    private static final int LAST_NAME = 2;
+    private static final int MODIFIED_AT = 3;
+
+    private static final Elements ELEMENTS = new Elements(
+            "org.opencrx.kernel.account1.Contact", "firstName", "lastName", "modifiedAt");
+
     private final List<OpencrxContact> destination;
 
     private String crxId;
     private long id;
     private String firstName;
     private String lastName;
+    private long modifiedAt;
 
 	public ContactParser(List<OpencrxContact> destination) {
+	    super(ELEMENTS);
         this.destination = destination;
     }
 
 	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
-
-	    if (qName.equals("firstName"))
-            firstName = buffer.toString();
-
-	    if (qName.equals("lastName"))
-            lastName = buffer.toString();
-
-		if (qName.equals("org.opencrx.kernel.account1.Contact"))
-		    destination.add(new OpencrxContact(id, "", firstName, lastName, crxId));
-
-		super.endElement(uri, localName, qName);
-
+	protected void endElement(int element) throws XmlPullParserException {
+	    switch (element) {
+	    case FIRST_NAME:
+	        firstName = getText();
+	        break;
+
+	    case LAST_NAME:
+	        lastName = getText();
+	        break;
+
+	    case MODIFIED_AT:
+	        try {
+	            if (!isTextEmpty())
+	                modifiedAt = OpencrxDateCodec.parse(getTextSequence());
+	        } catch (ParseException e) {
+	            throw new XmlPullParserException(e.getMessage(), null, e);
+	        }
+	        break;
+
+	    case CONTACT:
+	        OpencrxContact contact = new OpencrxContact(id, "", firstName, lastName, crxId);
+	        contact.setModifiedAt(modifiedAt);
+	        destination.add(contact);
+	        break;
+	    }
 	}
 
 	@Override
-	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-
-		super.startElement(uri, localName, qName, attributes);
-
-		if (qName.equals("org.opencrx.kernel.account1.Contact")){
-
-			crxId = attributes.getValue("id");
+	protected void startElement(int element, XmlPullParser xml) {
+		if (element == CONTACT){
+			crxId = xml.getAttributeValue(null, "id");
 			id = OpencrxUtils.hash(crxId);
-
+			firstName = lastName = null;
+			modifiedAt = 0;
 		}
-
-		if (qName.equals("firstName"))
-            initBuffer();
-
-        if (qName.equals("lastName"))
-            initBuffer();
-
 	}
 
 }
@@ -2,49 +2,42 @@ package ru.otdelit.astrid.opencrx.xml;
 
 import java.util.List;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class CreatorActivityGroupParser extends BaseParser{
 
+    private static final int ACTIVITY_GROUP = 0;
+    private static final int ITEM = 1;
+
+    private static final Elements ELEMENTS = new Elements("activityGroup", "_item");
+
     private final List<String> dest;
     private boolean activityGroup = false;
 
     public CreatorActivityGroupParser(List<String> dest){
+        super(ELEMENTS);
         this.dest = dest;
     }
 
     @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("activityGroup"))
+    protected void startElement(int element, XmlPullParser xml) {
+        if (element == ACTIVITY_GROUP)
             activityGroup = true;
-
-        if (activityGroup && qName.equals("_item"))
-            initBuffer();
-
     }
 
     @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
-
-        if (qName.equals("activityGroup"))
+    protected void endElement(int element) {
+        if (element == ACTIVITY_GROUP)
             activityGroup = false;
 
-        if (activityGroup && qName.equals("_item"))
-            dest.add(buffer.toString());
-
-        super.endElement(uri, localName, qName);
+        if (activityGroup && element == ITEM)
+            dest.add(getText());
     }
 
-
 }
@@ -1,30 +1,33 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
+@SuppressWarnings("nls")
 public class PropertySetParser extends BaseParser{
+
+    private static final int PROPERTY_SET = 0;
+
+    private static final Elements ELEMENTS = new Elements("org.opencrx.kernel.generic.PropertySet");
+
     private String id;
 
+    public PropertySetParser() {
+        super(ELEMENTS);
+    }
+
     public String getId(){
         return id;
     }
 
-    @SuppressWarnings("nls")
     @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("org.opencrx.kernel.generic.PropertySet")){
-            id = attributes.getValue("href");
-        }
+    protected void startElement(int element, XmlPullParser xml) {
+        if (element == PROPERTY_SET)
+            id = xml.getAttributeValue(null, "href");
     }
 
-
 }
@@ -1,19 +1,28 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ReferencePropertyParser extends BaseParser{
 
+    private static final int REFERENCE_PROPERTY = 0;
+    private static final int REFERENCE_VALUE = 1;
+
+    private static final Elements ELEMENTS = new Elements(
+            "org.opencrx.kernel.base.ReferenceProperty", "referenceValue");
+
     private String referenceValueXri;
     private String referencePropertyAddress;
 
+    public ReferencePropertyParser() {
+        super(ELEMENTS);
+    }
+
     public String getReferencePropertyAddress() {
         return referencePropertyAddress;
     }
@@ -23,28 +32,15 @@ public class ReferencePropertyParser extends BaseParser{
     }
 
     @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
-        if (qName.equals("referenceValue")){
-            referenceValueXri = buffer.toString();
-        }
-
-        super.endElement(uri, localName, qName);
+    protected void endElement(int element) {
+        if (element == REFERENCE_VALUE)
+            referenceValueXri = getText();
     }
 
     @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("org.opencrx.kernel.base.ReferenceProperty")){
-            referencePropertyAddress = attributes.getValue("href");
-        }
-
-        if (qName.equals("referenceValue")){
-            initBuffer();
-        }
+    protected void startElement(int element, XmlPullParser xml) {
+        if (element == REFERENCE_PROPERTY)
+            referencePropertyAddress = xml.getAttributeValue(null, "href");
     }
 
-
 }
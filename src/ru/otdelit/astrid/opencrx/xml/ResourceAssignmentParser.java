@@ -1,63 +1,70 @@
 package ru.otdelit.astrid.opencrx.xml;
 
 import java.text.ParseException;
+import java.util.Date;
 import java.util.List;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
+import ru.otdelit.astrid.opencrx.api.OpencrxDateCodec;
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 import ru.otdelit.astrid.opencrx.sync.OpencrxResourceAssignment;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ResourceAssignmentParser extends BaseParser{
 
+    private static final int ASSIGNMENT = 0;
+    private static final int RESOURCE = 1;
+    private static final int CREATED_AT = 2;
+
+    private static final Elements ELEMENTS = new Elements(
+            "org.opencrx.kernel.activity1.ResourceAssignment", "resource", "createdAt");
+
 	private final List<OpencrxResourceAssignment> destination;
 	private OpencrxResourceAssignment current;
 
 	public ResourceAssignmentParser(List<OpencrxResourceAssignment> destination){
+		super(ELEMENTS);
 		this.destination = destination;
 	}
 
     @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
+    protected void endElement(int element) throws XmlPullParserException {
+        if (current == null)
+            return;
 
-        if (qName.equals("resource"))
-            current.setResourceId(OpencrxUtils.getBaseXri(buffer.toString()));
+        switch (element) {
+        case RESOURCE:
+            current.setResourceId(OpencrxUtils.getBaseXri(getText()));
+            break;
 
-        if (qName.equals("org.opencrx.kernel.activity1.ResourceAssignment"))
+        case ASSIGNMENT:
             destination.add(current);
+            current = null;
+            break;
 
-        if (qName.equals("createdAt")){
+        case CREATED_AT:
             try {
-                current.setAssignmentDate(OpencrxUtils.parseFromOpencrx(buffer.toString()));
+                current.setAssignmentDate(new Date(OpencrxDateCodec.parse(getTextSequence())));
             } catch (ParseException e) {
-                throw new SAXException("Unparseable date in CreatedAt field of ResourceAssignment. Reason: " + e.getMessage());
+                throw new XmlPullParserException("Unparseable date in CreatedAt field of ResourceAssignment. Reason: " + e.getMessage());
             }
+            break;
         }
-
-        super.endElement(uri, localName, qName);
     }
 
     @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("org.opencrx.kernel.activity1.ResourceAssignment")){
+    protected void startElement(int element, XmlPullParser xml) {
+        if (element == ASSIGNMENT){
             current = new OpencrxResourceAssignment();
 
-            current.setAssignmentId(attributes.getValue("id"));
+            current.setAssignmentId(xml.getAttributeValue(null, "id"));
         }
-
-        if (qName.equals("resource") || qName.equals("createdAt"))
-            initBuffer();
-
     }
 }
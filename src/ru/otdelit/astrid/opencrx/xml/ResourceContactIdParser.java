@@ -2,46 +2,34 @@ package ru.otdelit.astrid.opencrx.xml;
 
 import java.util.List;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ResourceContactIdParser extends BaseParser{
 
+    private static final int CONTACT = 0;
+
+    private static final Elements ELEMENTS = new Elements("contact");
+
     private final List<String> destination;
 
     public ResourceContactIdParser(List<String> destination){
+        super(ELEMENTS);
         this.destination = destination;
     }
 
     @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
-
-        if (qName.equals("contact")){
-            String contactId = OpencrxUtils.getBaseXri(buffer.toString());
+    protected void endElement(int element) {
+        if (element == CONTACT){
+            String contactId = OpencrxUtils.getBaseXri(getText());
             if (contactId != null)
                 destination.add(contactId);
         }
-
-        super.endElement(uri, localName, qName);
-    }
-
-    @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("contact"))
-            initBuffer();
-
     }
 
 }
@@ -3,85 +3,81 @@ package ru.otdelit.astrid.opencrx.xml;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class ResourceParser extends BaseParser{
 
+    private static final int RESOURCE = 0;
+    private static final int NAME = 1;
+    private static final int DISABLED = 2;
+    private static final int CONTACT = 3;
+
+    private static final Elements ELEMENTS = new Elements(
+            "org.opencrx.kernel.activity1.Resource", "name", "disabled", "contact");
+
     private final JSONArray destination;
     private JSONObject label;
 
 	public ResourceParser(JSONArray destination) {
+	    super(ELEMENTS);
         this.destination = destination;
     }
 
 	@Override
-	public void endElement(String uri, String localName, String qName)throws SAXException {
+	protected void endElement(int element) throws XmlPullParserException {
 
-	    if (label == null){
-	        super.endElement(uri, localName, qName);
+	    if (label == null)
 	        return;
-	    }
-
-        if (qName.equals("name")){
-            try {
-                label.put("name", buffer.toString());
-            } catch (JSONException e) {
-                throw new SAXException(e);
-            }
-        }
-
-		if (qName.equals("org.opencrx.kernel.activity1.Resource")){
-			destination.put(label);
-		}
-
-		if (qName.equals("disabled")){
-		    if ("true".equals(buffer.toString()))
-		        label = null;
-		}
-
- 		if (qName.equals("contact")){
- 		    try {
- 		        label.put("contact_id", OpencrxUtils.getBaseXri(buffer.toString()));
-            } catch (JSONException e) {
-                throw new SAXException(e);
-            }
-		}
-
-		super.endElement(uri, localName, qName);
 
+	    try {
+	        switch (element) {
+	        case NAME:
+	            label.put("name", getText());
+	            break;
+
+	        case RESOURCE:
+	            destination.put(label);
+	            break;
+
+	        case DISABLED:
+	            if (textEquals("true"))
+	                label = null;
+	            break;
+
+	        case CONTACT:
+	            label.put("contact_id", OpencrxUtils.getBaseXri(getText()));
+	            break;
+	        }
+	    } catch (JSONException e) {
+	        throw new XmlPullParserException(e.getMessage(), null, e);
+	    }
 	}
 
 	@Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
-
-		super.startElement(uri, localName, qName, attributes);
+	protected void startElement(int element, XmlPullParser xml)
+			throws XmlPullParserException {
 
-		if (qName.equals("org.opencrx.kernel.activity1.Resource")){
+		if (element != RESOURCE)
+		    return;
 
-		    label = new JSONObject();
-
-			String id = attributes.getValue("id");
-			try {
-                label.put("id", id);
-                label.put("name", "");
-            } catch (JSONException e) {
-                throw new SAXException(e);
-            }
-		}
-
-		if (qName.equals("name") || qName.equals("disabled") || qName.equals("contact"))
-		    initBuffer();
+	    label = new JSONObject();
 
+		String id = xml.getAttributeValue(null, "id");
+		try {
+            label.put("id", id);
+            label.put("name", "");
+        } catch (JSONException e) {
+            throw new XmlPullParserException(e.getMessage(), null, e);
+        }
 	}
 
 }
@@ -1,45 +1,33 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class UserHomeParser extends BaseParser{
 
+    private static final int CONTACT = 0;
+
+    private static final Elements ELEMENTS = new Elements("contact");
+
     private String id;
 
+    public UserHomeParser() {
+        super(ELEMENTS);
+    }
+
     public String getId() {
         return id;
     }
 
     @Override
-    public void endElement(String uri, String localName, String qName)
-            throws SAXException {
-
-        if (qName.equals("contact"))
-            id = OpencrxUtils.getBaseXri(buffer.toString());
-
-        super.endElement(uri, localName, qName);
+    protected void endElement(int element) {
+        if (element == CONTACT)
+            id = OpencrxUtils.getBaseXri(getText());
     }
 
-    @Override
-	public void startElement(String uri, String localName, String qName,
-			Attributes attributes) throws SAXException {
-
-		super.startElement(uri, localName, qName, attributes);
-
-		if (qName.equals("contact")){
-
-			initBuffer();
-		}
-
-	}
-
 }
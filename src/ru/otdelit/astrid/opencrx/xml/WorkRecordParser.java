@@ -1,22 +1,26 @@
 package ru.otdelit.astrid.opencrx.xml;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import ru.otdelit.astrid.opencrx.api.OpencrxUtils;
 
-
-
-import android.text.TextUtils;
-
 /**
- * 
+ *
  * @author Andrey Marchenko <igendou@gmail.com>
  *
  */
 @SuppressWarnings("nls")
 public class WorkRecordParser extends BaseParser{
 
+    private static final int WORK_RECORD = 0;
+    private static final int QUANTITY = 1;
+    private static final int QUANTITY_UOM = 2;
+    private static final int RESOURCE = 3;
+
+    private static final Elements ELEMENTS = new Elements(
+            "org.opencrx.kernel.activity1.ActivityWorkRecord", "quantity", "quantityUom", "resource");
+
     private final String resourceId;
 
 	private int elapsedSeconds = 0;
@@ -26,6 +30,7 @@ public class WorkRecordParser extends BaseParser{
 	private boolean count;
 
 	public WorkRecordParser(String resourceId) {
+	    super(ELEMENTS);
         this.resourceId = resourceId;
     }
 
@@ -34,33 +39,30 @@ public class WorkRecordParser extends BaseParser{
 	}
 
 	@Override
-	public void endElement(String uri, String localName, String qName)
-			throws SAXException {
-
-	    if (qName.equals("quantity")){
-            String q = buffer.toString();
-            if (!TextUtils.isEmpty(q))
-                currentQuantity = Double.parseDouble(q);
-            else
-                currentQuantity = 0.0;
-        }
-
-        if (qName.equals("quantityUom")){
-            currentUom = buffer.toString();
-        }
-
-        if (qName.equals("resource")){
-            String id = OpencrxUtils.getBaseXri(buffer.toString());
-            if (!resourceId.equals(id))
-                count = false;
-        }
-
-		if (qName.equals("org.opencrx.kernel.activity1.ActivityWorkRecord")){
-
-		    if (currentUom == null || !count){
-		        super.endElement(uri, localName, qName);
-		        return;
-		    }
+	protected void endElement(int element) throws XmlPullParserException {
+
+	    switch (element) {
+	    case QUANTITY:
+	        try {
+	            currentQuantity = isTextEmpty() ? 0.0 : Double.parseDouble(getText());
+	        } catch (NumberFormatException e) {
+	            throw new XmlPullParserException(e.getMessage(), null, e);
+	        }
+	        break;
+
+	    case QUANTITY_UOM:
+	        currentUom = getText();
+	        break;
+
+	    case RESOURCE:
+	        String id = OpencrxUtils.getBaseXri(getText());
+	        if (!resourceId.equals(id))
+	            count = false;
+	        break;
+
+	    case WORK_RECORD:
+	        if (currentUom == null || !count)
+	            break;
 
 			if (currentUom.endsWith("sec"))
 				elapsedSeconds += (int) (currentQuantity);
@@ -70,27 +72,14 @@ public class WorkRecordParser extends BaseParser{
 				elapsedSeconds += (int) (currentQuantity * 86400.0);
 			else
 				elapsedSeconds += (int) (currentQuantity * 3600.0);
-		}
-
-		super.endElement(uri, localName, qName);
-
+			break;
+	    }
 	}
 
     @Override
-    public void startElement(String uri, String localName, String qName,
-            Attributes attributes) throws SAXException {
-        super.startElement(uri, localName, qName, attributes);
-
-        if (qName.equals("org.opencrx.kernel.activity1.ActivityWorkRecord")){
+    protected void startElement(int element, XmlPullParser xml) {
+        if (element == WORK_RECORD)
             count = true;
-        }
-
-        if (qName.equals("quantity") || qName.equals("quantityUom") || qName.equals("resource")){
-            initBuffer();
-        }
-
     }
 
-
-
 }